@@ -0,0 +1,141 @@
+/**
+ *  Author: Xiaoyu Zhu
+ *  Andrew id: xzhu4
+ *  The project limits how much work each client of the BlockChain may request.
+ */
+
+import org.json.simple.JSONObject;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AdmissionControl {
+    public static final int MAX_COST = 256; // tokens a client may save up, a request which costs more is never admitted
+    public static final int REFILL_PER_SECOND = 16; // tokens a client gets back every second
+    public static final int SWEEP_INTERVAL = 1024; // requests between two sweeps of the full buckets
+    public static final int MAX_CONNECTIONS = 512; // open connections, subscribed ones included
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>(); // client id -> tokens, only clients which spent some
+    private final AtomicLong admitted = new AtomicLong(); // requests checked, to schedule the sweeps
+    private final AtomicInteger connections = new AtomicInteger(); // open connections
+
+    /**
+     * Take the tokens for a request from the client's bucket.
+     * Every SWEEP_INTERVAL requests the buckets which refilled to MAX_COST are dropped: a full bucket is the same
+     * as a new one, so clients which come and go with new ids do not pile up.
+     * @param userID
+     * @param cost from cost()
+     * @return true if the client had enough tokens, otherwise nothing is taken
+     */
+    public boolean admit(String userID, int cost){
+        boolean[] taken = new boolean[1];
+        buckets.compute(userID, (id, bucket) -> {
+            if(bucket == null){
+                bucket = new Bucket();
+            }
+            taken[0] = bucket.take(cost);
+            return bucket;
+        });
+        if(admitted.incrementAndGet() % SWEEP_INTERVAL == 0){
+            for(String id : buckets.keySet()){
+                buckets.computeIfPresent(id, (key, bucket) -> bucket.isFull() ? null : bucket);
+            }
+        }
+        return taken[0];
+    }
+
+    /**
+     * Count a new connection.
+     * @return false if MAX_CONNECTIONS are open already, then the connection must be closed
+     */
+    public boolean connect(){
+        if(connections.incrementAndGet() > MAX_CONNECTIONS){
+            connections.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * A connection counted by connect() was closed.
+     */
+    public void disconnect(){
+        connections.decrementAndGet();
+    }
+
+    /**
+     * The cost of a request in tokens, about REFILL_PER_SECOND for each second it keeps a worker thread busy.
+     * Mining cost grows with difficulty, each extra hex 0 is 16 times the work, it is counted as 4 times.
+     * Difficulties above 6 cost more than MAX_COST, so they are rejected instead of being charged the same as 6.
+     * A repair costs the mining of every block it may mine again.
+     * @param option
+     * @param jsonObject the request
+     * @param bc the chain named by the request, null if it does not exist yet
+     * @return the number of tokens the request takes, more than MAX_COST if it may never run
+     */
+    public static int cost(int option, JSONObject jsonObject, BlockChain bc){
+        switch (option) {
+            case 0:
+                return REFILL_PER_SECOND; // hashesPerSecond() keeps a read thread busy for a second
+            case 1:
+                return miningCost(Integer.parseInt(jsonObject.get("difficulty").toString()));
+            case 2:
+            case 3:
+                return 2;
+            case 5: {
+                long cost = 1;
+                // a block costs at least 1 token, so more blocks than MAX_COST are over the limit anyway
+                for (int difficulty : bc == null ? List.<Integer>of() : bc.repairDifficulties(MAX_COST + 1)) {
+                    cost += miningCost(difficulty);
+                }
+                return (int) Math.min(cost, Integer.MAX_VALUE);
+            }
+            case 7: {
+                int jobOption = (int) jsonObject.get("jobOption");
+                // only options 1, 2 and 5 run as jobs, any other job option is refused by the server
+                return jobOption == 1 || jobOption == 2 || jobOption == 5 ? cost(jobOption, jsonObject, bc) : 1;
+            }
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * The cost of mining one block.
+     * @param difficulty
+     * @return 1 token at difficulty 2 or less, 4 times more for each further hex 0
+     */
+    private static int miningCost(int difficulty){
+        return (int) (1L << (2 * Math.min(15, Math.max(0, difficulty - 2))));
+    }
+
+    /**
+     * A token bucket, refilled by the time passed since it was last used.
+     */
+    private static class Bucket {
+        private double tokens = MAX_COST;
+        private long lastRefill = System.nanoTime();
+
+        synchronized boolean take(int cost){
+            refill();
+            if(tokens < cost){
+                return false;
+            }
+            tokens -= cost;
+            return true;
+        }
+
+        synchronized boolean isFull(){
+            refill();
+            return tokens >= MAX_COST;
+        }
+
+        private void refill(){
+            long now = System.nanoTime();
+            tokens = Math.min(MAX_COST, tokens + (now - lastRefill) / 1e9 * REFILL_PER_SECOND);
+            lastRefill = now;
+        }
+    }
+}
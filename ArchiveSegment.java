@@ -0,0 +1,249 @@
+/**
+ *  Author: Xiaoyu Zhu
+ *  Andrew id: xzhu4
+ *  The project is a sealed, compressed range of old blocks of the BlockChain.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+public class ArchiveSegment {
+    public static final int CHUNK_SIZE = 16; // blocks compressed together, a lookup inflates one chunk
+
+    private final int firstIndex; // position of the first block in the chain
+    private final int count; // number of blocks
+    private final byte[] data; // the compressed chunks, one after another
+    private final int[] chunkOffsets; // sparse index: where each chunk starts in data, plus the end
+    private final String summaryHash; // chain digest over the hashes of the blocks, see BlockChain.linkDigest()
+    private volatile DecodedChunk lastChunk; // the most recently inflated chunk, for sequential reads
+
+    //constructor
+    private ArchiveSegment(int firstIndex, int count, byte[] data, int[] chunkOffsets, String summaryHash) {
+        this.firstIndex = firstIndex;
+        this.count = count;
+        this.data = data;
+        this.chunkOffsets = chunkOffsets;
+        this.summaryHash = summaryHash;
+    }
+
+    /**
+     * Compress a range of blocks into a segment.
+     * @param firstIndex the position of the first block in the chain
+     * @param blocks
+     * @return the sealed segment
+     */
+    public static ArchiveSegment seal(int firstIndex, List<Block> blocks){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int chunks = (blocks.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int[] chunkOffsets = new int[chunks + 1];
+        try{
+            for(int chunk = 0; chunk < chunks; chunk++){
+                chunkOffsets[chunk] = bytes.size();
+                DeflaterOutputStream deflater = new DeflaterOutputStream(bytes);
+                DataOutputStream out = new DataOutputStream(deflater);
+                int end = Math.min(blocks.size(), (chunk + 1) * CHUNK_SIZE);
+                for(int i = chunk * CHUNK_SIZE; i < end; i++){
+                    writeBlock(out, blocks.get(i));
+                }
+                out.close(); // finishes the chunk and frees the native zlib state, closing bytes does nothing
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // cannot happen, the bytes are in memory
+        }
+        chunkOffsets[chunks] = bytes.size();
+        return new ArchiveSegment(firstIndex, blocks.size(), bytes.toByteArray(), chunkOffsets, summaryOf(blocks));
+    }
+
+    /**
+     * Read one block. The block may be shared with other readers and must not be changed.
+     * @param index the position of the block in the chain
+     * @return the block
+     */
+    public Block getBlock(int index){
+        int chunk = (index - firstIndex) / CHUNK_SIZE;
+        DecodedChunk decoded = lastChunk;
+        if(decoded == null || decoded.chunk != chunk){
+            decoded = new DecodedChunk(chunk, inflate(chunk));
+            lastChunk = decoded;
+        }
+        return decoded.blocks[(index - firstIndex) % CHUNK_SIZE];
+    }
+
+    /**
+     * Read one block into a new object, which the caller may change.
+     * @param index the position of the block in the chain
+     * @return the block
+     */
+    public Block copyBlock(int index){
+        return inflate((index - firstIndex) / CHUNK_SIZE)[(index - firstIndex) % CHUNK_SIZE];
+    }
+
+    /**
+     * Inflate every block and compare the hashes with the summary hash taken when sealing.
+     * @return true if the segment still holds the blocks it was sealed with
+     */
+    public boolean verify(){
+        List<Block> blocks = new ArrayList<>();
+        for(int chunk = 0; chunk < chunkOffsets.length - 1; chunk++){
+            for(Block block : inflate(chunk)){
+                blocks.add(block);
+            }
+        }
+        return blocks.size() == count && summaryOf(blocks).equals(summaryHash);
+    }
+
+    /**
+     *
+     * @return the position of the first block in the chain
+     */
+    public int getFirstIndex() {
+        return firstIndex;
+    }
+
+    /**
+     *
+     * @return the number of blocks in the segment
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     *
+     * @return the compressed size in bytes
+     */
+    public int compressedSize() {
+        return data.length;
+    }
+
+    /**
+     *
+     * @return the chain digest over the hashes of the blocks
+     */
+    public String getSummaryHash() {
+        return summaryHash;
+    }
+
+    /**
+     * Chain digest over the hashes of some blocks.
+     * @param blocks
+     * @return the digest
+     */
+    private static String summaryOf(List<Block> blocks){
+        String digest = "";
+        for(Block block : blocks){
+            digest = BlockChain.linkDigest(digest, block.calculateHash());
+        }
+        return digest;
+    }
+
+    /**
+     * Decompress one chunk.
+     * @param chunk
+     * @return the blocks of the chunk
+     */
+    private Block[] inflate(int chunk){
+        int start = chunkOffsets[chunk];
+        int blocks = Math.min(CHUNK_SIZE, count - chunk * CHUNK_SIZE);
+        Block[] decoded = new Block[blocks];
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(
+                new ByteArrayInputStream(data, start, chunkOffsets[chunk + 1] - start)))) {
+            for(int i = 0; i < blocks; i++){
+                decoded[i] = readBlock(in);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return decoded;
+    }
+
+    /**
+     * Write every field of a block, the hash can be recomputed from them.
+     * @param out
+     * @param block
+     */
+    private static void writeBlock(DataOutputStream out, Block block) throws IOException {
+        out.writeInt(block.getIndex());
+        out.writeLong(block.getTimestamp().getTime());
+        out.writeInt(block.getTimestamp().getNanos());
+        writeString(out, block.getData());
+        writeString(out, block.getPreviousHash());
+        byte[] nonce = block.getNonce().toByteArray();
+        out.writeShort(nonce.length);
+        out.write(nonce);
+        out.writeInt(block.getDifficulty());
+    }
+
+    /**
+     * Read a block written by writeBlock().
+     * @param in
+     * @return the block
+     */
+    private static Block readBlock(DataInputStream in) throws IOException {
+        int index = in.readInt();
+        Timestamp timestamp = new Timestamp(in.readLong());
+        timestamp.setNanos(in.readInt());
+        String data = readString(in);
+        String previousHash = readString(in);
+        byte[] nonce = new byte[in.readShort()];
+        in.readFully(nonce);
+        Block block = new Block(index, timestamp, data, in.readInt());
+        block.setPreviousHash(previousHash);
+        block.setNonce(new BigInteger(nonce));
+        return block;
+    }
+
+    /**
+     * Write a string of any length, null is kept apart from "".
+     * @param out
+     * @param s
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if(s == null){
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string written by writeString().
+     * @param in
+     * @return the string
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0){
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An inflated chunk and its number.
+     */
+    private static class DecodedChunk {
+        private final int chunk;
+        private final Block[] blocks;
+
+        DecodedChunk(int chunk, Block[] blocks){
+            this.chunk = chunk;
+            this.blocks = blocks;
+        }
+    }
+}
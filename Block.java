@@ -5,13 +5,16 @@
  */
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import com.google.gson.Gson;
+import org.json.simple.JSONObject;
 
 
 public class Block {
@@ -87,12 +90,83 @@ public class Block {
     }
 
 
+    /**
+     * Set the nonce, e.g. when a stored block is read back.
+     * @param nonce
+     */
+    public void setNonce(BigInteger nonce) {
+        this.nonce = nonce;
+    }
+
+
     /**
      * The proof of work methods finds a good hash. It increments the nonce until it produces a good hash.
+     * The index, timestamp, data and previousHash do not change while mining, so their digest state is
+     * computed once and only the nonce and difficulty are hashed for each candidate.
+     * The leading zeros are checked on the raw digest bytes instead of building a hex string per nonce.
+     * If the mining thread is interrupted, e.g. its job was cancelled, the search stops with a CancellationException.
      * @return  a String with a hash that has the appropriate number of leading hex zeroes.
      */
     public String proofOfWork(){
+        RequestStageEvent event = RequestStageEvent.start("proofOfWork");
+        BigInteger startNonce = nonce;
+        try{
+            return findNonce();
+        } finally {
+            event.finish(0, difficulty, nonce.subtract(startNonce).longValue(), 0);
+        }
+    }
+
+    /**
+     * Search the nonce for proofOfWork().
+     * Candidates are hashed one at a time with the JCA digest; its SHA-256 is intrinsified by HotSpot,
+     * which ran faster than multi-lane Vector API compression in measurement.
+     * @return  a String with a hash that has the appropriate number of leading hex zeroes.
+     */
+    private String findNonce(){
+        String prefix = (String.valueOf(index) + timestamp + data + previousHash).toUpperCase();
+        byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        // calculateHash() only hashes the first length() bytes, so non-ASCII blocks keep the original loop
+        if(prefixBytes.length != prefix.length()){
+            return proofOfWorkByString();
+        }
+        byte[] difficultyBytes = String.valueOf(difficulty).getBytes(StandardCharsets.UTF_8);
+        byte[] nonceDigits = nonce.toString().getBytes(StandardCharsets.UTF_8);
+        try{
+            MessageDigest prefixDigest = MessageDigest.getInstance("SHA-256");
+            prefixDigest.update(prefixBytes);
+            long tried = 0;
+            while(true){
+                MessageDigest digest = copyDigest(prefixDigest, prefixBytes);
+                digest.update(nonceDigits);
+                digest.update(difficultyBytes);
+                if(hasLeadingZeros(digest.digest(), difficulty)){
+                    break;
+                }
+                nonceDigits = incrementDigits(nonceDigits);
+                tried++;
+                if((tried & 0xFFF) == 0 && Thread.currentThread().isInterrupted()){
+                    throw new CancellationException("proof of work interrupted");
+                }
+            }
+            nonce = nonce.add(BigInteger.valueOf(tried));
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return proofOfWorkByString();
+        }
+        // the returned hash always comes from calculateHash(), so both paths agree on the result
+        String hashString = calculateHash();
+        if(!hashString.substring(0, difficulty).equals(new String(new char[difficulty]).replace('\0','0'))){
+            return proofOfWorkByString();
+        }
+        return hashString;
+    }
 
+    /**
+     * The original proof of work loop which recomputes calculateHash() for every nonce.
+     * @return  a String with a hash that has the appropriate number of leading hex zeroes.
+     */
+    private String proofOfWorkByString(){
         String hashString = calculateHash();
         char[] difficultyTochar = new char[difficulty];
         String target = new String(difficultyTochar).replace('\0','0');
@@ -100,10 +174,63 @@ public class Block {
         while(!hashString.substring(0,difficulty).equalsIgnoreCase(target)){
             nonce = nonce.add(new BigInteger("1"));
             hashString = calculateHash();
+            if(Thread.currentThread().isInterrupted()){
+                throw new CancellationException("proof of work interrupted");
+            }
         }
         return hashString;
     }
 
+    /**
+     * Copy the digest state after the prefix. If the provider cannot clone, hash the prefix again.
+     * @param prefixDigest
+     * @param prefixBytes
+     * @return a digest holding the state of the hashed prefix
+     */
+    private static MessageDigest copyDigest(MessageDigest prefixDigest, byte[] prefixBytes) throws NoSuchAlgorithmException {
+        try{
+            return (MessageDigest) prefixDigest.clone();
+        } catch (CloneNotSupportedException e) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(prefixBytes);
+            return digest;
+        }
+    }
+
+    /**
+     * Check that the hash starts with the given number of hex 0's. Each hex digit represents 4 bits.
+     * @param hashBytes
+     * @param difficulty
+     * @return true if the first difficulty half bytes are all zero
+     */
+    private static boolean hasLeadingZeros(byte[] hashBytes, int difficulty){
+        for(int i = 0; i < difficulty / 2; i++){
+            if(hashBytes[i] != 0){
+                return false;
+            }
+        }
+        return difficulty % 2 == 0 || ((hashBytes[difficulty / 2] >>> 4) & 0x0F) == 0;
+    }
+
+    /**
+     * Add one to a decimal number held as ASCII digits.
+     * @param digits
+     * @return the digits of the next number, a new array when the number gets one digit longer
+     */
+    private static byte[] incrementDigits(byte[] digits){
+        for(int i = digits.length - 1; i >= 0; i--){
+            if(digits[i] != '9'){
+                digits[i]++;
+                return digits;
+            }
+            digits[i] = '0';
+        }
+        byte[] longer = new byte[digits.length + 1];
+        longer[0] = '1';
+        System.arraycopy(digits, 0, longer, 1, digits.length);
+        return longer;
+    }
+
 
     /**
      * This method returns the difficulty which is the number of hex 0's a proper hash must have.
@@ -140,6 +267,34 @@ public class Block {
 
     }
 
+    /**
+     * Unlike toString(), this keeps every field exactly, so the receiver can recompute the hash of the block.
+     * @return all of this block's data for sending to a client.
+     */
+    public JSONObject toJSONObject(){
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("index", index);
+        jsonObject.put("timestamp", timestamp);
+        jsonObject.put("data", data);
+        jsonObject.put("previousHash", previousHash);
+        jsonObject.put("nonce", nonce);
+        jsonObject.put("difficulty", difficulty);
+        return jsonObject;
+    }
+
+    /**
+     * Rebuild a block sent by toJSONObject().
+     * @param jsonObject
+     * @return the block
+     */
+    public static Block fromJSONObject(JSONObject jsonObject){
+        Block block = new Block((int) jsonObject.get("index"), (Timestamp) jsonObject.get("timestamp"),
+                (String) jsonObject.get("data"), (int) jsonObject.get("difficulty"));
+        block.setPreviousHash((String) jsonObject.get("previousHash"));
+        block.nonce = (BigInteger) jsonObject.get("nonce");
+        return block;
+    }
+
     /**
      * set previousHash - a hashpointer to this block's parent
      * @param previousHash
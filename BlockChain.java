@@ -5,16 +5,43 @@
  */
 
 
+import org.json.simple.JSONArray;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class BlockChain {
+    public static final int SEGMENT_SIZE = 256; // blocks per archive segment
+    public static final int KEEP_LIVE = 64; // the most recent blocks are never archived
+    private static final ScheduledExecutorService COMPACTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chain-compaction");
+        thread.setDaemon(true);
+        return thread;
+    }); // compacts every chain of the process
     String chainHash = null; // the most recent block
-    List<Block> blockChainArray; // arraylist of block
+    List<Block> blockChainArray; // arraylist of block, the live blocks after the archive
+    List<ArchiveSegment> archive = new ArrayList<>(); // sealed segments holding blocks 0 .. archivedCount - 1
+    int archivedCount = 0; // number of blocks in the archive
+    Map<Integer, Block> archiveChanges = new HashMap<>(); // archived blocks changed since they were sealed
+    private long changeCount = 0; // counts changes to existing blocks, compaction retries if it changed while sealing
+    private int repairFrom = Integer.MAX_VALUE; // the first block changed since the last repair, none if MAX_VALUE
+    private final Object miningLock = new Object(); // only one block is mined at a time
+    BlockSubscribers subscribers = new BlockSubscribers(); // clients listening for new blocks
+    TransactionIndex transactions = new TransactionIndex(); // the transactions in the chain, to reject duplicates
+    public static final int DIGEST_LENGTH = 32; // bytes of a chain digest
+    private byte[] digests = new byte[DIGEST_LENGTH * KEEP_LIVE]; // cached chainDigests(), packed DIGEST_LENGTH bytes per block
+    private int digestCount = 0; // blocks with a cached digest, fewer than the chain after a change
 
     //constructor
     BlockChain(){
@@ -23,23 +50,216 @@ public class BlockChain {
 
     /**
      * Add a new Block to the BlockChain.
+     * The proof of work runs without holding the chain lock, so reads are not blocked while a block is mined.
+     * Miners are serialized by miningLock. If the tip changed while mining (corruption or repair), the block is mined again.
+     * A transaction which is already in the chain is rejected before any proof of work is spent on it.
      * @param newBlock
+     * @return false if the transaction of the block is already in the chain
      */
-    public void addBlock(Block newBlock){
-        Block lastBlock = getLatestBlock();
-        newBlock.setPreviousHash(lastBlock.calculateHash());
-        blockChainArray.add(newBlock);
-        chainHash = newBlock.proofOfWork();
+    public boolean addBlock(Block newBlock){
+        synchronized (miningLock) {
+            while (true) {
+                String lastHash;
+                synchronized (this) {
+                    if (containsTransaction(newBlock.getData())) {
+                        return false;
+                    }
+                    lastHash = getLatestBlock().calculateHash();
+                    newBlock.setIndex(getChainSize());
+                }
+                newBlock.setPreviousHash(lastHash);
+                String newHash = newBlock.proofOfWork();
+                synchronized (this) {
+                    if (newBlock.getIndex() == getChainSize() && getLatestBlock().calculateHash().equals(lastHash)
+                            && !containsTransaction(newBlock.getData())) {
+                        blockChainArray.add(newBlock);
+                        transactions.add(newBlock.getData(), newBlock.getIndex());
+                        chainHash = newHash;
+                        if (digestCount == newBlock.getIndex()) {
+                            appendDigest(newHash);
+                        }
+                        subscribers.publish("append", newBlock, newHash);
+                        return true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the genesis block, it is mined by the caller.
+     * @param firstBlock
+     */
+    public synchronized void addGenesisBlock(Block firstBlock){
+        blockChainArray.add(firstBlock);
+        transactions.add(firstBlock.getData(), firstBlock.getIndex());
+        chainHash = firstBlock.calculateHash();
+        digestCount = 0;
+        appendDigest(chainHash);
+    }
+
+    /**
+     * Check the transaction index: the Bloom filter rejects most new transactions,
+     * a possible duplicate is confirmed by comparing the data of the indexed blocks.
+     * @param transaction
+     * @return true if a block of the chain holds exactly this transaction
+     */
+    public synchronized boolean containsTransaction(String transaction){
+        for (int index : transactions.candidates(transaction)) {
+            if (getBlock(index).getData().equals(transaction)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace the data of one block, e.g. to corrupt the chain.
+     * @param index
+     * @param data
+     */
+    public synchronized void setBlockData(int index, String data){
+        Block block = getBlockForUpdate(index);
+        transactions.remove(block.getData(), index);
+        block.setData(data);
+        transactions.add(data, index);
+        dropDigestsFrom(index);
+        repairFrom = Math.min(repairFrom, index);
+    }
+
+    /**
+     * The difficulties of the blocks a repair may mine again, every block from the first one changed since the last repair.
+     * @param limit the most difficulties to return
+     * @return the difficulties, in chain order
+     */
+    public synchronized List<Integer> repairDifficulties(int limit){
+        List<Integer> difficulties = new ArrayList<>();
+        for(int i = repairFrom; i < getChainSize() && difficulties.size() < limit; i++){
+            difficulties.add(getBlock(i).getDifficulty());
+        }
+        return difficulties;
+    }
+
+    /**
+     * Look up a block, archived or live. The block must not be changed, see getBlockForUpdate().
+     * @param index
+     * @return the block at position index
+     */
+    public synchronized Block getBlock(int index){
+        if(index >= archivedCount){
+            return blockChainArray.get(index - archivedCount);
+        }
+        if(index < 0){
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        Block changed = archiveChanges.get(index);
+        if(changed != null){
+            return changed;
+        }
+        return archive.get(index / SEGMENT_SIZE).getBlock(index);
+    }
+
+    /**
+     * Look up a block which is about to be changed.
+     * An archived block is copied out of its segment, the segment is sealed again by the next compaction.
+     * @param index
+     * @return the block at position index
+     */
+    private Block getBlockForUpdate(int index){
+        changeCount++;
+        if(index >= archivedCount || index < 0){
+            return getBlock(index);
+        }
+        return archiveChanges.computeIfAbsent(index, i -> archive.get(i / SEGMENT_SIZE).copyBlock(i));
     }
 
+    /**
+     * Start sealing old blocks into archive segments in the background, on the thread shared by all chains.
+     * A failed run is logged, an exception would cancel every later run of the chain.
+     */
+    public void startCompaction(){
+        COMPACTOR.scheduleWithFixedDelay(() -> {
+            try{
+                compact();
+            } catch (RuntimeException e) {
+                System.out.println("Compaction error: " + e);
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
 
+    /**
+     * Seal the oldest live blocks into a segment, and seal again a segment which holds changed blocks.
+     * The blocks are compressed without holding the chain lock, so appends and reads go on meanwhile.
+     * If a block is changed while compressing, the segment is thrown away and built again next time.
+     */
+    public void compact(){
+        while(true){
+            int firstIndex;
+            List<Block> blocks = new ArrayList<>();
+            long changesBefore;
+            synchronized (this) {
+                changesBefore = changeCount;
+                if(!archiveChanges.isEmpty()){
+                    firstIndex = (archiveChanges.keySet().iterator().next() / SEGMENT_SIZE) * SEGMENT_SIZE;
+                    for(int i = firstIndex; i < firstIndex + SEGMENT_SIZE; i++){
+                        blocks.add(getBlock(i));
+                    }
+                } else if(blockChainArray.size() - KEEP_LIVE >= SEGMENT_SIZE){
+                    firstIndex = archivedCount;
+                    blocks.addAll(blockChainArray.subList(0, SEGMENT_SIZE));
+                } else {
+                    return;
+                }
+            }
+            ArchiveSegment segment = ArchiveSegment.seal(firstIndex, blocks);
+            if(!segment.verify()){
+                System.out.println("Compaction error: segment at block " + firstIndex + " does not read back");
+                return;
+            }
+            synchronized (this) {
+                if(changeCount != changesBefore){
+                    continue;
+                }
+                if(firstIndex < archivedCount){
+                    archive.set(firstIndex / SEGMENT_SIZE, segment);
+                    for(int i = firstIndex; i < firstIndex + SEGMENT_SIZE; i++){
+                        archiveChanges.remove(i);
+                    }
+                } else {
+                    archive.add(segment);
+                    blockChainArray.subList(0, SEGMENT_SIZE).clear();
+                    archivedCount += SEGMENT_SIZE;
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @return the number of archived blocks and their compressed size
+     */
+    public synchronized String archiveStatus(){
+        long bytes = 0;
+        for(ArchiveSegment segment : archive){
+            bytes += segment.compressedSize();
+        }
+        return "Archived blocks: " + archivedCount + " in " + archive.size() + " segments, " + bytes + " bytes compressed";
+    }
+
+    /**
+     *
+     * @return the hash of the most recent block.
+     */
+    public synchronized String getChainHash() {
+        return chainHash;
+    }
 
     /**
      *
      * @return the size of the chain in blocks.
      */
-    public int getChainSize() {
-        return blockChainArray.size();
+    public synchronized int getChainSize() {
+        return archivedCount + blockChainArray.size();
     }
 
 
@@ -48,7 +268,7 @@ public class BlockChain {
      *
      * @return a reference to the most recently added Block.
      */
-    public Block getLatestBlock(){
+    public synchronized Block getLatestBlock(){
         return blockChainArray.get(blockChainArray.size() - 1);
     }
 
@@ -118,7 +338,7 @@ public class BlockChain {
      * otherwise, return true.
      * @return true if and only if the chain is valid
      */
-    public boolean isChainValid(){
+    public synchronized boolean isChainValid(){
 
         int size = getChainSize();
         if(size == 1){
@@ -131,8 +351,8 @@ public class BlockChain {
             }
         }else{
             for(int i = 1; i < size; i++){
-                Block prev = blockChainArray.get(i - 1);
-                Block curr = blockChainArray.get(i);
+                Block prev = getBlock(i - 1);
+                Block curr = getBlock(i);
                 String prevHash = prev.calculateHash();
                 String currHash = curr.calculateHash();
                 String prevDiff = new String(new char[prev.getDifficulty()]).replace('\0','0');
@@ -150,29 +370,172 @@ public class BlockChain {
     }
 
 
+    /**
+     * Digest of the chain up to each block. Unlike the hash pointers, the digest of block i covers
+     * every block before it, so a corrupted block changes the digests of all later blocks.
+     * The digests are cached: appends extend them, a changed block drops them from its position on,
+     * and only the dropped part is hashed again here.
+     * @return the digest of blocks 0 .. i at position i, a read-only view to use while holding the chain lock
+     */
+    public synchronized List<String> chainDigests(){
+        while(digestCount < getChainSize()){
+            appendDigest(getBlock(digestCount).calculateHash());
+        }
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index){
+                if(index < 0 || index >= digestCount){
+                    throw new IndexOutOfBoundsException("Index: " + index);
+                }
+                return digestAt(index);
+            }
+
+            @Override
+            public int size(){
+                return digestCount;
+            }
+        };
+    }
+
+    /**
+     * Cache the digest of the next block. The digests are kept as bytes, half the size of their hexadecimal text.
+     * @param blockHash the hash of block digestCount
+     */
+    private void appendDigest(String blockHash){
+        byte[] digest = linkDigestBytes(digestCount == 0 ? "" : digestAt(digestCount - 1), blockHash);
+        if((digestCount + 1) * DIGEST_LENGTH > digests.length){
+            digests = Arrays.copyOf(digests, digests.length + digests.length / 2);
+        }
+        System.arraycopy(digest, 0, digests, digestCount * DIGEST_LENGTH, DIGEST_LENGTH);
+        digestCount++;
+    }
+
+    /**
+     *
+     * @param index
+     * @return the cached digest of block index, as hexadecimal characters
+     */
+    private String digestAt(int index){
+        return String.format("%064X", new BigInteger(1, Arrays.copyOfRange(digests, index * DIGEST_LENGTH, (index + 1) * DIGEST_LENGTH)));
+    }
+
+    /**
+     * Forget the cached digests of a changed block and of every block after it.
+     * @param index
+     */
+    private void dropDigestsFrom(int index){
+        digestCount = Math.min(digestCount, index);
+    }
+
+    /**
+     * Extend a chain digest by one block.
+     * @param previousDigest the digest of the blocks before, "" for the genesis block
+     * @param blockHash
+     * @return the SHA256 of the concatenation, as hexadecimal characters
+     */
+    public static String linkDigest(String previousDigest, String blockHash){
+        return String.format("%064X", new BigInteger(1, linkDigestBytes(previousDigest, blockHash)));
+    }
+
+    /**
+     * Extend a chain digest by one block.
+     * @param previousDigest the digest of the blocks before, "" for the genesis block
+     * @param blockHash
+     * @return the SHA256 of the concatenation
+     */
+    private static byte[] linkDigestBytes(String previousDigest, String blockHash){
+        try{
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return digest.digest((previousDigest + blockHash).getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            e.printStackTrace();
+        }
+        return new byte[DIGEST_LENGTH];
+    }
+
+    /**
+     *
+     * @param start
+     * @return the blocks from position start to the end of the chain, ready to send to a client.
+     */
+    public synchronized JSONArray blocksFrom(int start){
+        JSONArray blocks = new JSONArray();
+        for(int i = start; i < getChainSize(); i++){
+            blocks.add(getBlock(i).toJSONObject());
+        }
+        return blocks;
+    }
+
     /**
      * This routine repairs the chain.
      * It checks the hashes of each block and ensures that any illegal hashes are recomputed.
      * After this routine is run, the chain will be valid.
      * The routine does not modify any difficulty values.
      * It computes new proof of work based on the difficulty specified in the Block.
+     * Only the blocks from the first one changed since the last repair are checked, the ones before are valid.
+     * Like in addBlock(), the proof of work runs without holding the chain lock: a copy of the block is mined
+     * and its nonce is put in place if no block changed meanwhile, otherwise the block is checked again.
      *
      */
     public void repairChain(){
-        for (int i = 0; i < getChainSize(); i++){
-            Block block = blockChainArray.get(i);
+        synchronized (miningLock) {
+            while (true) {
+                int i;
+                Block copy;
+                long changesBefore;
+                synchronized (this) {
+                    i = firstBlockToRepair();
+                    if (i < 0) {
+                        repairFrom = Integer.MAX_VALUE;
+                        return;
+                    }
+                    repairFrom = i;
+                    copy = Block.fromJSONObject(getBlock(i).toJSONObject());
+                    changesBefore = changeCount;
+                }
+                String newHash = copy.proofOfWork();
+                synchronized (this) {
+                    if (changeCount != changesBefore) {
+                        continue;
+                    }
+                    Block block = getBlockForUpdate(i);
+                    block.setNonce(copy.getNonce());
+                    dropDigestsFrom(i);
+                    subscribers.publish("repair", block, newHash);
+                    if(i < getChainSize() - 1){
+                        getBlockForUpdate(i + 1).setPreviousHash(newHash);
+                    }else{
+                        chainHash = newHash;
+                    }
+                    repairFrom = i + 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Check the blocks from repairFrom on. A block whose hash still has the leading 0's needs no proof of work,
+     * but its hash may have changed with its previousHash, then the hash pointer of the next block is updated.
+     * @return the first block from repairFrom on whose hash lacks the leading 0's, -1 if there is none
+     */
+    private int firstBlockToRepair(){
+        for (int i = repairFrom; i < getChainSize(); i++){
+            Block block = getBlock(i);
             String hashString = block.calculateHash();
             String difficultString = new String(new char[block.getDifficulty()]).replace('\0','0');
             if(!hashString.substring(0, block.getDifficulty()).equalsIgnoreCase(difficultString)){
-                String newHash = block.proofOfWork();
-                if(i < getChainSize() - 1){
-                    blockChainArray.get(i + 1).setPreviousHash(newHash);
-                }else{
-                    chainHash = newHash;
+                return i;
+            }
+            if(i < getChainSize() - 1){
+                if(!getBlock(i + 1).getPreviousHash().equals(hashString)){
+                    getBlockForUpdate(i + 1).setPreviousHash(hashString);
+                    dropDigestsFrom(i + 1);
                 }
+            }else{
+                chainHash = hashString;
             }
         }
-
+        return -1;
     }
 
     /**
@@ -180,10 +543,10 @@ public class BlockChain {
      * @return a String representation of the entire chain is returned.
      */
     @Override
-    public String toString(){
+    public synchronized String toString(){
         String out = "{\"ds_chain\":[";
-        for(Block block : blockChainArray){
-            out += block.toString() + ",\n";
+        for(int i = 0; i < getChainSize(); i++){
+            out += getBlock(i).toString() + ",\n";
         }
         out +="], \"chainHash\": \"" + chainHash + "\"}";
         return out;
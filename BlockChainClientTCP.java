@@ -7,17 +7,24 @@
 import org.json.simple.JSONObject;
 import java.io.*;
 import java.math.BigInteger;
-import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
 import java.net.UnknownHostException;
 import java.security.MessageDigest;
+import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.UUID;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 public class BlockChainClientTCP {
     public static void main(String args[]){
-
-        startClient(); //start the proxy
+        String chainId = args.length > 0 ? args[0] : "default"; // the chain on the server to work on
+        String address = args.length > 1 ? args[1] : Transport.DEFAULT_ADDRESS; // "host:port" or "unix:/path/to/socket"
+        startClient(chainId, Transport.parseAddress(address)); //start the proxy
     }
 
     /**
@@ -40,27 +47,32 @@ public class BlockChainClientTCP {
     // 5. Therefore, the block chain is more efficient and faster when dealing with a block of lower difficulty for method addBlock(),chainRepair().
     // It takes equal time to verify, i.e. isChainValid() method.
     // These results are consistent with the assumption.
-    public static void startClient() {
+    public static void startClient(String chainId, SocketAddress address) {
         System.out.println("Client running.");
-        Socket clientSocket =  null;
+        SocketChannel clientSocket =  null;
         try{
             // If we get here, then we are now connected to a server.
-            int serverPort = 7777; //port
-            clientSocket = new Socket("localhost", serverPort);//start a new socket
+            clientSocket = Transport.connect(address);//start a new socket, TCP or Unix domain
             BufferedReader typed = new BufferedReader(new InputStreamReader(System.in));
 
             // Set up "out" to read from the socket
-            OutputStream outputStream = clientSocket.getOutputStream();
+            OutputStream outputStream = Channels.newOutputStream(clientSocket);
             ObjectOutputStream out = new ObjectOutputStream(outputStream);
 
             // Set up "in" to read from the socket
-            InputStream inputStream = clientSocket.getInputStream();
+            InputStream inputStream = Channels.newInputStream(clientSocket);
             ObjectInputStream in = new ObjectInputStream(inputStream);
 
             BigInteger[] keys = getKeys();
             String publicKey = keys[0].toString() + keys[1].toString(); //public key, keys[0] is e, keys[1] is n
             String id = getId(publicKey); //calculate the user id
             System.out.println("The client id is " + id);
+            System.out.println("The chain is " + chainId);
+            ChainCache cache = new ChainCache(); // local copy of the chain for option 3
+
+            // handshake: prove the key once with a signature, then authenticate requests with the session key
+            byte[] sessionKey = startSession(out, in, id, publicKey, keys);
+            long sequence = 0; // sequence number of the next request in the session
 
             while(true){
                 String information = id + "," + publicKey;
@@ -68,13 +80,22 @@ public class BlockChainClientTCP {
                 printMenu();
 
                 int option = Integer.parseInt(typed.readLine());
+                // view the blockchain through the local copy, only the changed blocks are transferred
+                if(option == 3){
+                    option = 10;
+                }
                 information += "," + option;
+                // every request names the chain, it is signed before the free-form fields so they cannot shift into it
+                information += "," + chainId;
 
                 //create a new jsonObject to store the information
                 JSONObject jsonObject = new JSONObject();
                 jsonObject.put("id", id);
-                jsonObject.put("e", keys[0]);
-                jsonObject.put("n", keys[1]);
+                jsonObject.put("chainId",chainId);
+                if(sessionKey == null){
+                    jsonObject.put("e", keys[0]);
+                    jsonObject.put("n", keys[1]);
+                }
                 jsonObject.put("option", option);
 
                 //add a new block to the chain
@@ -103,11 +124,60 @@ public class BlockChainClientTCP {
 
                     information += "," + blockID + "," + newData;
                 }
+                // send what the local copy holds
+                else if(option == 10){
+                    String locator = cache.locator();
+                    jsonObject.put("locator",locator);
+                    information += "," + locator;
+                }
+                // run option 1, 2 or 5 as a background job
+                else if(option == 7){
+                    System.out.println("Enter the option to run as a job (1, 2 or 5)");
+                    int jobOption = Integer.valueOf(typed.readLine());
+                    jsonObject.put("jobOption",jobOption);
+                    information += "," + jobOption;
+
+                    if(jobOption == 1){
+                        System.out.println("Enter difficulty > 0");
+                        int difficulty = Integer.valueOf(typed.readLine());
+                        jsonObject.put("difficulty",difficulty);
+
+                        System.out.println("Enter transaction");
+                        String transaction = typed.readLine();
+                        jsonObject.put("transaction",transaction);
+
+                        information += "," + difficulty + "," + transaction;
+                    }
+                }
+                // check a background job
+                else if(option == 8){
+                    System.out.println("Enter job ID");
+                    String jobId = typed.readLine();
+                    jsonObject.put("jobId",jobId);
+
+                    System.out.println("Enter the time to wait for the job in milliseconds");
+                    long timeout = Long.valueOf(typed.readLine());
+                    jsonObject.put("timeout",timeout);
+
+                    information += "," + jobId + "," + timeout;
+                }
 
-                String signature = sign(information, keys[2],keys[1]);
-                jsonObject.put("signature",signature);
+                if(sessionKey != null){
+                    jsonObject.put("seq",sequence);
+                    jsonObject.put("mac",mac(sequence + "," + information, sessionKey));
+                    sequence++;
+                }else{
+                    String signature = sign(information, keys[2],keys[1]);
+                    jsonObject.put("signature",signature);
+                }
 
                 //send the request to the server
+                // the trace id lets the server's events of this request be matched with ours
+                String traceId = UUID.randomUUID().toString();
+                jsonObject.put("traceId",traceId);
+                RequestStageEvent.setTrace(new RequestStageEvent.Trace(traceId, option, id, chainId));
+                RequestStageEvent roundTrip = RequestStageEvent.start("clientRoundTrip");
+
                 out.writeObject(jsonObject);
                 outputStream.flush();
 
@@ -115,11 +185,47 @@ public class BlockChainClientTCP {
                     break;
                 }
 
+                // print the pushed events until the server closes the stream
+                if(option == 9){
+                    JSONObject reply = (JSONObject)in.readObject();
+                    if(reply.get("error") != null){
+                        System.out.println((String)reply.get("error"));
+                        continue;
+                    }
+                    System.out.println((String)reply.get("res"));
+                    try{
+                        while(true){
+                            JSONObject event = (JSONObject)in.readObject();
+                            if("heartbeat".equals(event.get("event"))){
+                                continue;
+                            }
+                            System.out.println("New block (" + event.get("event") + "): height " + event.get("height")
+                                    + ", hash " + event.get("hash") + ", tx count " + event.get("txCount"));
+                        }
+                    } catch (IOException e) {
+                        System.out.println("Subscription closed by the server.");
+                    }
+                    break;
+                }
+
                 JSONObject jsonObjectReceive = (JSONObject)in.readObject();
-                if(jsonObjectReceive.get("error")==null) {
+                roundTrip.finish(0, 0, 0, 0);
+                if(option == 10 && jsonObjectReceive.get("error")==null) {
+                    System.out.println((String)jsonObjectReceive.get("res"));
+                    if(cache.apply(jsonObjectReceive)){
+                        System.out.println("View the BlockChain ");
+                        System.out.println(cache.chain.toString());
+                        System.out.println("Hash pointers of the local copy are consistent: " + cache.isLinked());
+                    }else{
+                        // the local copy went wrong, fetch the whole chain next time
+                        cache.clear();
+                        System.out.println("The local copy does not match the server, view the blockchain again to fetch it.");
+                    }
+                }
+                else if(jsonObjectReceive.get("error")==null) {
                     System.out.println((String)jsonObjectReceive.get("res"));
                 }else{
-                    System.out.println("BlockChainClientTCP.startClient");
+                    System.out.println((String)jsonObjectReceive.get("error"));
                 }
 
             }
@@ -128,7 +234,7 @@ public class BlockChainClientTCP {
             e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
-        } catch (ClassNotFoundException | NoSuchAlgorithmException e) {
+        } catch (ClassNotFoundException | NoSuchAlgorithmException | InvalidKeyException e) {
             e.printStackTrace();
         }finally{
             try{
@@ -152,6 +258,56 @@ public class BlockChainClientTCP {
         System.out.println("4. Corrupt the chain");
         System.out.println("5. Hide the corruption by repairing the chain.");
         System.out.println("6. Exit.");
+        System.out.println("7. Run option 1, 2 or 5 as a background job.");
+        System.out.println("8. Check a background job.");
+        System.out.println("9. Subscribe to new blocks.");
+    }
+
+    /**
+     * Start a session (option 11). The request is signed with the private key like any other request.
+     * The server answers with a new session key encrypted with the public key (e and n).
+     * @param out
+     * @param in
+     * @param id
+     * @param publicKey
+     * @param keys [e,n,d]
+     * @return the session key, or null if the server did not start a session
+     */
+    static byte[] startSession(ObjectOutputStream out, ObjectInputStream in, String id, String publicKey, BigInteger[] keys)
+            throws IOException, ClassNotFoundException, NoSuchAlgorithmException {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("id", id);
+        jsonObject.put("e", keys[0]);
+        jsonObject.put("n", keys[1]);
+        jsonObject.put("option", 11);
+        jsonObject.put("signature", sign(id + "," + publicKey + "," + 11 + "," + BlockChainServerTCP.DEFAULT_CHAIN, keys[2], keys[1]));
+        out.writeObject(jsonObject);
+        out.flush();
+
+        JSONObject jsonObjectReceive = (JSONObject) in.readObject();
+        if(jsonObjectReceive.get("sessionKey") == null){
+            return null;
+        }
+        // decrypt with the private key, the key may have lost leading zero bytes on the way
+        byte[] decrypted = new BigInteger((String) jsonObjectReceive.get("sessionKey")).modPow(keys[2], keys[1]).toByteArray();
+        byte[] sessionKey = new byte[32];
+        int length = Math.min(decrypted.length, sessionKey.length);
+        System.arraycopy(decrypted, decrypted.length - length, sessionKey, sessionKey.length - length, length);
+        return sessionKey;
+    }
+
+    /**
+     * This method computes the MAC of a request in a session.
+     * It replaces the signature, so a request costs one HMAC-SHA256 instead of an RSA exponentiation.
+     * @param information the sequence number and the message which would be signed
+     * @param sessionKey
+     * @return the MAC as hexadecimal characters
+     */
+    static String mac(String information, byte[] sessionKey) throws UnsupportedEncodingException, NoSuchAlgorithmException, InvalidKeyException {
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(sessionKey, "HmacSHA256"));
+        byte[] macBytes = hmac.doFinal(information.getBytes("UTF-8"));
+        return String.format("%064X", new BigInteger(1, macBytes));
     }
 
     /**
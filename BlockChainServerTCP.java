@@ -4,20 +4,43 @@
  *  The project is a TCP server for the BlockChain.
  */
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import java.io.*;
 import java.math.BigInteger;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.MessageDigest;
+import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.sql.Timestamp;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 
 
 public class BlockChainServerTCP {
-    BlockChain bc = new BlockChain();
+    static final String DEFAULT_CHAIN = "default"; // the chain of requests without a chainId
+    Map<String, BlockChain> chains = new ConcurrentHashMap<>(); // chain id -> chain, each chain has its own lock
+    static final int MAX_CHAINS = 64; // chains the server hosts, requests for further new chains are rejected
+    static final String CHAIN_ID_PATTERN = "[A-Za-z0-9_-]{1,64}"; // chain ids have no commas, so the signed message stays unambiguous
+    static final int SESSION_KEY_LENGTH = 32; // bytes of a session key
+    SecureRandom random = new SecureRandom(); // creates the session keys
+    static final int QUEUE_CAPACITY = 64; // requests which may wait in each lane before new ones are rejected
+    static final int CLIENT_QUEUE_CAPACITY = 8; // requests one client may have waiting in each lane
+    JobScheduler scheduler = new JobScheduler(Runtime.getRuntime().availableProcessors(),
+            Runtime.getRuntime().availableProcessors(), QUEUE_CAPACITY, CLIENT_QUEUE_CAPACITY); // runs options 0 - 5 of all chains
+    AdmissionControl admission = new AdmissionControl(); // per client rate limits
+    ExecutorService connections = Executors.newCachedThreadPool(); // one thread per connected client, at most MAX_CONNECTIONS
 
 
     /**
@@ -26,12 +49,40 @@ public class BlockChainServerTCP {
      * The information includes id, public key,option, signature and other needed info.
      */
     public static void main(String args[]){
+        // listen on "port", "host:port" or "unix:/path/to/socket", port 7777 by default
+        String address = args.length > 0 ? args[0] : "7777";
         BlockChainServerTCP server = new BlockChainServerTCP();
-        Block firstBlock = new Block(0,server.bc.getTime(),"Genesis",2);
-        firstBlock.setPreviousHash("");
-        server.bc.chainHash = firstBlock.proofOfWork();
-        server.bc.blockChainArray.add(firstBlock);
-        server.startServer();
+        server.getChain(DEFAULT_CHAIN);
+        server.startServer(Transport.parseAddress(address));
+    }
+
+    /**
+     * Get a chain by its id, a new chain starts with a genesis block
+     * @param chainId
+     * @return the chain, or null if the id is not valid or the server already hosts MAX_CHAINS chains
+     */
+    public BlockChain getChain(String chainId) {
+        BlockChain existing = chains.get(chainId);
+        if (existing != null) {
+            return existing;
+        }
+        if (!chainId.matches(CHAIN_ID_PATTERN)) {
+            return null;
+        }
+        synchronized (chains) {
+            if (chains.size() >= MAX_CHAINS && !chains.containsKey(chainId)) {
+                return null;
+            }
+            return chains.computeIfAbsent(chainId, id -> {
+                BlockChain bc = new BlockChain();
+                Block firstBlock = new Block(0,bc.getTime(),"Genesis",2);
+                firstBlock.setPreviousHash("");
+                firstBlock.proofOfWork();
+                bc.addGenesisBlock(firstBlock);
+                bc.startCompaction();
+                return bc;
+            });
+        }
     }
 
     /**
@@ -40,157 +91,309 @@ public class BlockChainServerTCP {
      * If the two verification pass, it will send the information back to the client
      *
      */
-    public  void startServer() {
-        System.out.println("Server running.");
-        Socket serverSocket = null;
+    public  void startServer(SocketAddress address) {
+        System.out.println("Server running on " + address + ".");
+        ServerSocketChannel listenSocket = null;
 
         try {
-            int serverPort = 7777; // the server port we are using
-            // Create a new server socket
-            ServerSocket listenSocket = new ServerSocket(serverPort);
+            // Create a new server socket, TCP or Unix domain
+            listenSocket = Transport.listen(address);
 
             /*
              * Block waiting for a new connection request from a client.
              * When the request is received, "accept" it, and the rest
              * the tcp protocol handshake will then take place, making
              * the socket ready for reading and writing.
+             * Both transports carry the same object streams, so the protocol and auth do not change.
              */
             while(true){
 
-                serverSocket = listenSocket.accept();
+                SocketChannel serverSocket = listenSocket.accept();
+                // Too many open connections, each one would hold a thread
+                if (!admission.connect()) {
+                    try {
+                        serverSocket.close();
+                    } catch (IOException e) {
+
+                    }
+                    continue;
+                }
                 // If we get here, then we are now connected to a client.
-                // Set up "in" to read from the client socket
-                InputStream inputStream = serverSocket.getInputStream();
-                ObjectInputStream in = new ObjectInputStream(inputStream);
+                // Each client gets its own thread, the admission control decides whose requests run.
+                connections.execute(() -> handleConnection(serverSocket));
+            }
 
-                // Set up "out" to read from the socket
-                OutputStream outputStream = serverSocket.getOutputStream();
-                ObjectOutputStream out = new ObjectOutputStream(outputStream);
+        } catch (IOException  e){
+            System.out.println("IO Exception "+ e.getMessage());
+        }finally{
+            try{
+                if(listenSocket != null){
+                    listenSocket.close();
+                }
+            } catch (IOException e) {
 
-                while (true) {
-                    //receive the jsonobject from the client
-                    JSONObject jsonObject = new JSONObject();
-                    try {
-                        jsonObject = (JSONObject) in.readObject();
+            }
+        }
+    }
 
-                    } catch (IOException e) {
-                        break;
-                    } catch (ClassNotFoundException e) {
+    /**
+     * Serve the requests of one client until it disconnects
+     * @param serverSocket the connection to the client
+     */
+    public void handleConnection(SocketChannel serverSocket) {
+        boolean subscribed = false;
+        try {
+            // a failure here only ends this connection, not the accept loop
+            Transport.configure(serverSocket);
+            // Set up "in" to read from the client socket
+            MeteredInputStream inputStream = new MeteredInputStream(Channels.newInputStream(serverSocket));
+            ObjectInputStream in = new ObjectInputStream(inputStream);
+
+            // Set up "out" to read from the socket
+            OutputStream outputStream = Channels.newOutputStream(serverSocket);
+            ObjectOutputStream out = new ObjectOutputStream(outputStream);
+            byte[] sessionKey = null; // HMAC key of this connection, set by the handshake (option 11)
+            String sessionID = null; // the client which started the session
+            BigInteger sessionE = null; // the public key of that client
+            BigInteger sessionN = null;
+            long nextSequence = 0; // the sequence number the next request must carry, so requests cannot be replayed
+
+            while (true) {
+                //receive the jsonobject from the client
+                JSONObject jsonObject = new JSONObject();
+                RequestStageEvent readEvent = RequestStageEvent.start("deserialize");
+                try {
+                    inputStream.startMessage(readEvent);
+                    jsonObject = (JSONObject) in.readObject();
+
+                } catch (IOException e) {
+                    break;
+                } catch (ClassNotFoundException e) {
+                    break;
+                }
+                String userID = (String) jsonObject.get("id"); //userId
+                String chainId = jsonObject.get("chainId") == null ? DEFAULT_CHAIN : (String) jsonObject.get("chainId");
+                // the trace id set by the client ties the events of this request together
+                RequestStageEvent.Trace trace = new RequestStageEvent.Trace((String) jsonObject.get("traceId"),
+                        (int) jsonObject.get("option"), userID, chainId);
+                RequestStageEvent.setTrace(trace);
+                readEvent.finish(0, 0, 0, inputStream.bytes);
+                boolean inSession = jsonObject.get("mac") != null; // the request is authenticated by the session key
+                BigInteger e = inSession ? sessionE : (BigInteger) (jsonObject.get("e")); // e is the exponent of the public key
+                BigInteger n = inSession ? sessionN : (BigInteger) jsonObject.get("n"); // n is the modulus for both the private and public keys
+                int option = (int) jsonObject.get("option"); //option
+                JSONObject responseObject = new JSONObject();
+                if (inSession && sessionKey == null) {
+                    System.out.println("Verification error: no session was started!");
+                    responseObject.put("error", "error 3: no session was started!");
+                    break;
+                }
+                String publicKey = e.toString() + n.toString(); //public key is concatenation of e and n
+                String signature = (String) jsonObject.get("signature"); //signature
+                String messageToCheck = userID + "," + publicKey + "," + option; //the message need to be checked
+
+                //add the chain the request works on, also when it is the default one, before the free-form fields
+                messageToCheck += "," + chainId;
+
+                //option is 1, add difficulty and transaction to the checking message
+                if (option == 1) {
+                    messageToCheck += "," + jsonObject.get("difficulty") + "," + jsonObject.get("transaction");
+                }
+                //option is 4, add blockToCorrupt and newData to the checking message
+                else if (option == 4) {
+                    messageToCheck += "," + jsonObject.get("blockToCorrupt") + "," + jsonObject.get("newData");
+                }
+                //option is 7, add the job option (and its block) to the checking message
+                else if (option == 7) {
+                    messageToCheck += "," + jsonObject.get("jobOption");
+                    if ((int) jsonObject.get("jobOption") == 1) {
+                        messageToCheck += "," + jsonObject.get("difficulty") + "," + jsonObject.get("transaction");
+                    }
+                }
+                //option is 8, add jobId and timeout to the checking message
+                else if (option == 8) {
+                    messageToCheck += "," + jsonObject.get("jobId") + "," + jsonObject.get("timeout");
+                }
+                //option is 10, add the locator to the checking message
+                else if (option == 10) {
+                    messageToCheck += "," + jsonObject.get("locator");
+                }
+
+                if (inSession) {
+                    // Verify the session, the sequence number and the MAC of the request
+                    long sequence = Long.parseLong(jsonObject.get("seq").toString());
+                    RequestStageEvent verifyEvent = RequestStageEvent.start("verifyMac");
+                    boolean verified = userID.equals(sessionID) && sequence == nextSequence
+                            && verifyMac(sequence + "," + messageToCheck, (String) jsonObject.get("mac"), sessionKey);
+                    verifyEvent.finish(0, 0, 0, messageToCheck.length());
+                    if (!verified) {
+                        System.out.println("Verification error: the MAC does not match!");
+                        responseObject.put("error", "error 4: the MAC does not match!");
                         break;
                     }
-                    String userID = (String) jsonObject.get("id"); //userId
-                    BigInteger e = (BigInteger) (jsonObject.get("e")); // e is the exponent of the public key
-                    BigInteger n = (BigInteger) jsonObject.get("n"); // n is the modulus for both the private and public keys
-                    int option = (int) jsonObject.get("option"); //option
-                    String publicKey = e.toString() + n.toString(); //public key is concatenation of e and n
-                    String signature = (String) jsonObject.get("signature"); //signature
-                    String messageToCheck = userID + "," + publicKey + "," + option; //the message need to be checked
-
-                    JSONObject responseObject = new JSONObject();
+                    nextSequence++;
+                } else {
                     // Verify if the public key is matched
                     if (!verifyPublicKey(publicKey, userID)) {
                         System.out.println("Verification error: the public key does not match!");
                         responseObject.put("error", "error 1: the public key does not match!");
                         break;
                     }
-
-                    //option is 1, add difficulty and transaction to the checking message
-                    if (option == 1) {
-                        messageToCheck += "," + jsonObject.get("difficulty") + "," + jsonObject.get("transaction");
-                    }
-                    //option is 4, add blockToCorrupt and newData to the checking message
-                    else if (option == 4) {
-                        messageToCheck += "," + jsonObject.get("blockToCorrupt") + "," + jsonObject.get("newData");
-                    }
-
                     // Verify if the signature is matched
-                    if (!verifySignature(messageToCheck, signature, e, n)) {
+                    RequestStageEvent verifyEvent = RequestStageEvent.start("verifySignature");
+                    boolean verified = verifySignature(messageToCheck, signature, e, n);
+                    verifyEvent.finish(0, 0, 0, messageToCheck.length());
+                    if (!verified) {
                         System.out.println("Verification error: the signature does not match!");
                         responseObject.put("error", "error 2: the signature does not match!");
                         break;
                     }
+                }
 
-                    String res = new String();
+                String res = new String();
 
-                    switch (option) {
-                        //case 0: display the current chain
-                        case 0: {
-                            res += "Current size of chain: " + bc.getChainSize() + "\n";
-                            res += "Current hashes per second by this machine: " + bc.hashesPerSecond() + "\n";
-                            res += "Difficulty of most recent block: " + bc.getLatestBlock().getDifficulty() + "\n";
-                            res += "Nonce for most recent block: " + bc.getLatestBlock().getNonce() + "\n";
-                            res += "Chain hash: " + bc.chainHash;
-                            break;
-                        }
-                        // case 1: add anew block to the end
-                        case 1: {
-                            int difficulty = Integer.parseInt(jsonObject.get("difficulty").toString());
-                            String transaction = jsonObject.get("transaction").toString();
-                            Timestamp start = bc.getTime();
-                            Block nextblock = new Block(bc.getChainSize(), start, transaction, difficulty);
-                            bc.addBlock(nextblock);
-                            Timestamp end = bc.getTime();
-                            res += "Total execution time to add this block was " + (end.getTime() - start.getTime()) + " millionseconds" + "\n";
-                            break;
+                // Reject a request which costs more than a client can ever save up
+                int cost = AdmissionControl.cost(option, jsonObject, chains.get(chainId));
+                if (cost > AdmissionControl.MAX_COST) {
+                    responseObject.put("error", "error 8: the request costs " + cost + " tokens, at most "
+                            + AdmissionControl.MAX_COST + " are allowed");
+                    out.writeObject(responseObject);
+                    outputStream.flush();
+                    continue;
+                }
+                // Reject the request at once if the client used up its tokens
+                if (!admission.admit(userID, cost)) {
+                    responseObject.put("error", "error 5: too many requests, try again later");
+                    out.writeObject(responseObject);
+                    outputStream.flush();
+                    continue;
+                }
+                // Only admitted requests may create a chain
+                BlockChain bc = getChain(chainId);
+                if (bc == null) {
+                    responseObject.put("error", "error 7: the chain " + chainId + " cannot be created");
+                    out.writeObject(responseObject);
+                    outputStream.flush();
+                    continue;
+                }
+
+                switch (option) {
+                    // case 0 - 5: queue the operation in its lane and wait for it
+                    case 0:
+                    case 1:
+                    case 2:
+                    case 3:
+                    case 4:
+                    case 5: {
+                        JSONObject request = jsonObject;
+                        String result = scheduler.run(userID, chainId, priorityOf(option), RequestStageEvent.traced(trace, () -> runOption(bc, option, request)));
+                        if (result == null) {
+                            responseObject.put("error", "error 6: the server is overloaded, try again later");
+                        } else {
+                            res += result;
                         }
-                        // case 2: verify the whole chain.
-                        case 2: {
-                            res += "Verifying the entire chain  \n";
-                            Timestamp start = bc.getTime();
-                            res += "Chain verification: " + bc.isChainValid() + "\n";
-                            Timestamp end = bc.getTime();
-                            res += "Total execution time required to verify the chain was " + (end.getTime() - start.getTime()) + " millionseconds" + "\n";
+                        break;
+                    }
+                    // case 6: exit
+                    case 6: {
+                        continue;
+                    }
+                    // case 7: run option 1, 2 or 5 as a background job
+                    case 7: {
+                        int jobOption = (int) jsonObject.get("jobOption");
+                        if (jobOption != 1 && jobOption != 2 && jobOption != 5) {
+                            res += "Only options 1, 2 and 5 can run as a job\n";
                             break;
                         }
-                        // case 3: display the whole chain (JSON)
-                        case 3: {
-                            res += "View the BlockChain \n";
-                            res += bc.toString() + "\n";
+                        JSONObject jobRequest = jsonObject;
+                        String jobId = scheduler.submit(serverSocket, userID, chainId, priorityOf(jobOption), RequestStageEvent.traced(trace, () -> runOption(bc, jobOption, jobRequest)));
+                        if (jobId == null) {
+                            responseObject.put("error", "error 6: the server is overloaded, try again later");
                             break;
                         }
-                        // case 4: corrupt the chain with new Data
-                        case 4: {
-                            res += "Corrupt the Blockchain \n";
-                            res += "Enter block ID of block to Corrupt \n";
-                            int blockID = (int) jsonObject.get("blockToCorrupt");
-                            res += "Enter new data for block " + blockID + "\n";
-                            String newData = (String) jsonObject.get("newData");
-                            bc.blockChainArray.get(blockID).setData(newData);
-                            res += "Block " + blockID + " now holds " + newData + "\n";
-                            break;
+                        responseObject.put("jobId", jobId);
+                        res += "Job " + jobId + " submitted\n";
+                        break;
+                    }
+                    // case 8: poll a background job, waiting up to the given time
+                    case 8: {
+                        String jobId = jsonObject.get("jobId").toString();
+                        long timeout = Long.parseLong(jsonObject.get("timeout").toString());
+                        res += scheduler.status(jobId, userID, timeout) + "\n";
+                        break;
+                    }
+                    // case 9: keep the connection open and push new-block events to it
+                    case 9: {
+                        synchronized (bc) { // no block is published between reading the height and subscribing
+                            responseObject.put("res", "Subscribed to new blocks at height " + (bc.getChainSize() - 1) + "\n");
+                            // the background jobs of the connection keep running while it is subscribed, they are cancelled when it ends
+                            subscribed = bc.subscribers.subscribe(serverSocket, out, responseObject,
+                                    () -> {
+                                        scheduler.cancelJobsOf(serverSocket);
+                                        admission.disconnect();
+                                    });
                         }
-                        // case 5: recompute the proof of work, repair the chain
-                        case 5: {
-                            res += "Reparing the entire chain\n";
-                            Timestamp start = bc.getTime();
-                            bc.repairChain();
-                            Timestamp end = bc.getTime();
-                            res +="Total execution required to repair the chain was " + (end.getTime() - start.getTime()) + " millionseconds";
-                            break;
+                        if (!subscribed) {
+                            responseObject.remove("res");
+                            responseObject.put("error", "error 9: too many subscribers, try again later");
                         }
-                        // case 6: exit
-                        case 6: {
-                            continue;
+                        break;
+                    }
+                    // case 10: send the blocks a client's cached chain is missing
+                    case 10: {
+                        JSONArray blocks;
+                        synchronized (bc) { // the digests and blocks must come from the same chain
+                            List<String> digests = bc.chainDigests();
+                            int start = ChainCache.resumeFrom((String) jsonObject.get("locator"), digests);
+                            blocks = bc.blocksFrom(start);
+                            responseObject.put("start", start);
+                            responseObject.put("blocks", blocks);
+                            responseObject.put("digest", digests.get(digests.size() - 1));
+                            responseObject.put("chainHash", bc.getChainHash());
                         }
-                        default:
-                            throw new IllegalStateException();
-
+                        res += "Sent " + blocks.size() + " blocks from block " + responseObject.get("start") + "\n";
+                        break;
+                    }
+                    // case 11: handshake, send a new session key encrypted with the client's public key
+                    case 11: {
+                        byte[] newKey = new byte[SESSION_KEY_LENGTH];
+                        random.nextBytes(newKey);
+                        sessionKey = newKey;
+                        sessionID = userID;
+                        sessionE = e;
+                        sessionN = n;
+                        nextSequence = 0;
+                        responseObject.put("sessionKey", new BigInteger(1, newKey).modPow(e, n).toString());
+                        res += "Session started\n";
+                        break;
                     }
+                    default:
+                        throw new IllegalStateException();
 
-                    responseObject.put("res", res);
-                    // send back to the client
-                    out.writeObject(responseObject);
-                    outputStream.flush();
                 }
-            }
+                // the connection now belongs to the subscription
+                if (subscribed) {
+                    break;
+                }
 
+                responseObject.put("res", res);
+                // send back to the client
+                out.writeObject(responseObject);
+                outputStream.flush();
+            }
         } catch (IOException  e){
             System.out.println("IO Exception "+ e.getMessage());
-        } catch(NoSuchAlgorithmException e) {
+        } catch(NoSuchAlgorithmException | InvalidKeyException | InterruptedException e) {
             e.printStackTrace();
         }finally{
+            RequestStageEvent.setTrace(null);
+            // the client is gone, nobody can collect its jobs any more, a subscription cancels them once it ends
+            if(!subscribed){
+                scheduler.cancelJobsOf(serverSocket);
+                admission.disconnect();
+            }
             try{
-                if(serverSocket != null){
+                if(!subscribed){
                     serverSocket.close();
                 }
             } catch (IOException e) {
@@ -200,6 +403,106 @@ public class BlockChainServerTCP {
     }
 
 
+    /**
+     * The lane of an option, reads run ahead of repairs and repairs ahead of mining
+     * @param option 0 - 5
+     * @return one of the JobScheduler PRIORITY constants
+     */
+    public static int priorityOf(int option) {
+        if (option == 1) {
+            return JobScheduler.PRIORITY_MINE;
+        } else if (option == 5) {
+            return JobScheduler.PRIORITY_REPAIR;
+        }
+        return JobScheduler.PRIORITY_READ;
+    }
+
+    /**
+     * Run option 0 - 5 on a chain
+     * @param bc the chain named by the request
+     * @param option
+     * @param jsonObject the request holding the parameters of the option
+     * @return the response text
+     */
+    public String runOption(BlockChain bc, int option, JSONObject jsonObject) {
+        String res = new String();
+        switch (option) {
+            //case 0: display the current chain
+            case 0: {
+                Block latestBlock = bc.getLatestBlock();
+                res += "Current size of chain: " + bc.getChainSize() + "\n";
+                res += "Chains hosted by this server: " + chains.size() + "\n";
+                res += "Current hashes per second by this machine: " + bc.hashesPerSecond() + "\n";
+                res += "Difficulty of most recent block: " + latestBlock.getDifficulty() + "\n";
+                res += "Nonce for most recent block: " + latestBlock.getNonce() + "\n";
+                res += "Chain hash: " + bc.getChainHash() + "\n";
+                res += bc.archiveStatus() + "\n";
+                res += bc.transactions.status() + "\n";
+                res += scheduler.queueStatus();
+                break;
+            }
+            // case 1: add anew block to the end
+            case 1: {
+                int difficulty = Integer.parseInt(jsonObject.get("difficulty").toString());
+                String transaction = jsonObject.get("transaction").toString();
+                Timestamp start = bc.getTime();
+                Block nextblock = new Block(bc.getChainSize(), start, transaction, difficulty);
+                if (!bc.addBlock(nextblock)) {
+                    res += "Rejected: the transaction is already in the chain\n";
+                    break;
+                }
+                Timestamp end = bc.getTime();
+                res += "Total execution time to add this block was " + (end.getTime() - start.getTime()) + " millionseconds" + "\n";
+                break;
+            }
+            // case 2: verify the whole chain.
+            case 2: {
+                res += "Verifying the entire chain  \n";
+                Timestamp start = bc.getTime();
+                RequestStageEvent validEvent = RequestStageEvent.start("isChainValid");
+                boolean valid = bc.isChainValid();
+                validEvent.finish(bc.getChainSize(), bc.getLatestBlock().getDifficulty(), 0, 0);
+                res += "Chain verification: " + valid + "\n";
+                Timestamp end = bc.getTime();
+                res += "Total execution time required to verify the chain was " + (end.getTime() - start.getTime()) + " millionseconds" + "\n";
+                break;
+            }
+            // case 3: display the whole chain (JSON)
+            case 3: {
+                res += "View the BlockChain \n";
+                RequestStageEvent toStringEvent = RequestStageEvent.start("toString");
+                String chain = bc.toString();
+                toStringEvent.finish(bc.getChainSize(), bc.getLatestBlock().getDifficulty(), 0, chain.length());
+                res += chain + "\n";
+                break;
+            }
+            // case 4: corrupt the chain with new Data
+            case 4: {
+                res += "Corrupt the Blockchain \n";
+                res += "Enter block ID of block to Corrupt \n";
+                int blockID = (int) jsonObject.get("blockToCorrupt");
+                res += "Enter new data for block " + blockID + "\n";
+                String newData = (String) jsonObject.get("newData");
+                bc.setBlockData(blockID, newData);
+                res += "Block " + blockID + " now holds " + newData + "\n";
+                break;
+            }
+            // case 5: recompute the proof of work, repair the chain
+            case 5: {
+                res += "Reparing the entire chain\n";
+                Timestamp start = bc.getTime();
+                bc.repairChain();
+                Timestamp end = bc.getTime();
+                res +="Total execution required to repair the chain was " + (end.getTime() - start.getTime()) + " millionseconds";
+                break;
+            }
+            default:
+                throw new IllegalStateException();
+        }
+        return res;
+    }
+
+
     /**
      * verify the signature
      * @param messageToCheck
@@ -232,6 +535,22 @@ public class BlockChainServerTCP {
         }
     }
 
+    /**
+     * verify the MAC of a request in a session
+     * @param messageToCheck the sequence number and the message which would be signed
+     * @param mac
+     * @param sessionKey
+     * @return true if the MAC is matched
+     */
+    public static boolean verifyMac(String messageToCheck, String mac, byte[] sessionKey) throws UnsupportedEncodingException, NoSuchAlgorithmException, InvalidKeyException {
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(sessionKey, "HmacSHA256"));
+        byte[] macBytes = hmac.doFinal(messageToCheck.getBytes("UTF-8"));
+        String expected = String.format("%064X", new BigInteger(1, macBytes));
+        // compare in constant time
+        return mac != null && MessageDigest.isEqual(expected.getBytes("UTF-8"), mac.getBytes("UTF-8"));
+    }
+
     /**
      * verify the publicKey
      * @param publicKey
@@ -269,4 +588,48 @@ public class BlockChainServerTCP {
         }
         return "";
     }
+
+    /**
+     * Counts the bytes of each request, and starts its deserialize event when the first byte arrives,
+     * so the time spent waiting for the client is not counted.
+     */
+    private static class MeteredInputStream extends FilterInputStream {
+        long bytes = 0; // bytes of the current request
+        private RequestStageEvent pending; // started when the first byte arrives
+
+        MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        void startMessage(RequestStageEvent event) {
+            bytes = 0;
+            pending = event;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        private void count(int read) {
+            if (pending != null) {
+                pending.begin();
+                pending = null;
+            }
+            bytes += read;
+        }
+    }
 }
@@ -0,0 +1,137 @@
+/**
+ *  Author: Xiaoyu Zhu
+ *  Andrew id: xzhu4
+ *  The project pushes new-block events to subscribed clients of the BlockChain.
+ */
+
+import org.json.simple.JSONObject;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BlockSubscribers {
+    public static final int BUFFER_SIZE = 64; // events buffered per subscriber before it is evicted
+    public static final int MAX_SUBSCRIBERS = 256; // subscribers of all chains, each one holds a writer thread
+    public static final int HEARTBEAT_SECONDS = 30; // a quiet subscription is written to this often, so a gone client is noticed
+    private static final AtomicInteger connected = new AtomicInteger(); // subscribers of all chains
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger subscriberCount = new AtomicInteger(); // numbers the subscribers for their thread names
+
+    /**
+     * Start pushing events to a connection. The connection is owned by the subscription from now on.
+     * The caller holds the chain lock, so no block is published between reading the height for the reply
+     * and registering the subscriber. The reply is buffered ahead of the events and sent first.
+     * @param socket
+     * @param out
+     * @param reply the answer to the subscribe request
+     * @param onClose runs once the subscription ends and its connection is closed
+     * @return false if MAX_SUBSCRIBERS connections are subscribed already, then nothing is sent
+     */
+    public boolean subscribe(SocketChannel socket, ObjectOutputStream out, JSONObject reply, Runnable onClose){
+        if(connected.incrementAndGet() > MAX_SUBSCRIBERS){
+            connected.decrementAndGet();
+            return false;
+        }
+        Subscriber subscriber = new Subscriber(socket, out, onClose);
+        subscriber.events.add(reply);
+        subscribers.add(subscriber);
+        subscriber.writer.start();
+        return true;
+    }
+
+
+    /**
+     * Queue an event for every subscriber. This never blocks:
+     * a subscriber whose buffer is full is too slow and gets disconnected.
+     * @param event "append" or "repair"
+     * @param block
+     * @param hash the new hash of the block
+     */
+    public void publish(String event, Block block, String hash){
+        if(subscribers.isEmpty()){
+            return;
+        }
+        JSONObject eventObject = new JSONObject();
+        eventObject.put("event", event);
+        eventObject.put("height", block.getIndex());
+        eventObject.put("hash", hash);
+        eventObject.put("txCount", 1); // a block holds one transaction
+        for(Subscriber subscriber : subscribers){
+            if(!subscriber.events.offer(eventObject)){
+                System.out.println("Evicting slow subscriber " + subscriber.writer.getName());
+                close(subscriber);
+            }
+        }
+    }
+
+    /**
+     *
+     * @return the number of connected subscribers
+     */
+    public int size(){
+        return subscribers.size();
+    }
+
+    /**
+     * Drop a subscriber and close its connection.
+     * @param subscriber
+     */
+    private void close(Subscriber subscriber){
+        if(!subscribers.remove(subscriber)){
+            return; // closed already
+        }
+        connected.decrementAndGet();
+        subscriber.writer.interrupt();
+        try{
+            subscriber.socket.close();
+        } catch (IOException e) {
+
+        }
+        subscriber.onClose.run();
+    }
+
+    /**
+     * One subscribed connection with its own buffer and writer thread.
+     */
+    private class Subscriber {
+        private final SocketChannel socket;
+        private final ObjectOutputStream out;
+        private final Runnable onClose;
+        private final BlockingQueue<JSONObject> events = new ArrayBlockingQueue<>(BUFFER_SIZE);
+        private final Thread writer;
+
+        Subscriber(SocketChannel socket, ObjectOutputStream out, Runnable onClose){
+            this.socket = socket;
+            this.out = out;
+            this.onClose = onClose;
+            this.writer = new Thread(this::write, "subscriber-" + subscriberCount.incrementAndGet());
+            this.writer.setDaemon(true);
+        }
+
+        /**
+         * Send the buffered events until the connection fails or the subscriber is evicted.
+         * Without events a heartbeat is sent, writing is the only way to find out that the client is gone.
+         */
+        private void write(){
+            JSONObject heartbeat = new JSONObject();
+            heartbeat.put("event", "heartbeat");
+            try{
+                while(true){
+                    JSONObject event = events.poll(HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+                    out.writeObject(event == null ? heartbeat : event);
+                    out.reset(); // do not keep every event in the stream's handle table
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                close(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ *  Author: Xiaoyu Zhu
+ *  Andrew id: xzhu4
+ *  The project is a client-side copy of the BlockChain, kept up to date by delta sync.
+ */
+
+import org.json.simple.JSONObject;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ChainCache {
+    BlockChain chain = new BlockChain(); // the local copy of the server's chain
+    List<String> digests = new ArrayList<>(); // chain digest up to each cached block, see BlockChain.chainDigests()
+
+    /**
+     * Describe the cached chain by the digests of the tip and of blocks 1, 2, 4, 8, ... below it.
+     * The server resumes after the highest entry it agrees with,
+     * so a rewritten range is sent again with at most twice its length.
+     * @return "height:digest" pairs separated by ';', highest first
+     */
+    public String locator(){
+        StringBuilder sb = new StringBuilder();
+        int step = 1;
+        int height = digests.size() - 1;
+        int lastHeight = -1;
+        while(height >= 0){
+            if(sb.length() > 0){
+                sb.append(';');
+                step *= 2;
+            }
+            sb.append(height).append(':').append(digests.get(height));
+            lastHeight = height;
+            height -= step;
+        }
+        if(lastHeight > 0){
+            sb.append(";0:").append(digests.get(0));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Find where the server's chain stops matching a locator.
+     * @param locator from locator()
+     * @param serverDigests the server's BlockChain.chainDigests()
+     * @return the first block position the client needs
+     */
+    public static int resumeFrom(String locator, List<String> serverDigests){
+        if(locator.isEmpty()){
+            return 0;
+        }
+        for(String entry : locator.split(";")){
+            int split = entry.indexOf(':');
+            int height = Integer.parseInt(entry.substring(0, split));
+            if(height < serverDigests.size() && serverDigests.get(height).equals(entry.substring(split + 1))){
+                return height + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Replace the cached blocks from start on with the blocks sent by the server.
+     * @param response the server's answer to a sync request
+     * @return true if the cache now has the digest the server reported
+     */
+    public boolean apply(JSONObject response){
+        int start = (int) response.get("start");
+        List<JSONObject> blocks = (List<JSONObject>) response.get("blocks");
+        while(chain.blockChainArray.size() > start){
+            chain.blockChainArray.remove(chain.blockChainArray.size() - 1);
+            digests.remove(digests.size() - 1);
+        }
+        for(JSONObject blockObject : blocks){
+            Block block = Block.fromJSONObject(blockObject);
+            String previousDigest = digests.isEmpty() ? "" : digests.get(digests.size() - 1);
+            chain.blockChainArray.add(block);
+            digests.add(BlockChain.linkDigest(previousDigest, block.calculateHash()));
+        }
+        chain.chainHash = (String) response.get("chainHash");
+        return !digests.isEmpty() && digests.get(digests.size() - 1).equals(response.get("digest"));
+    }
+
+    /**
+     * Check the hash pointers of the cached chain.
+     * @return true if every block points to the hash of its parent
+     */
+    public boolean isLinked(){
+        for(int i = 1; i < chain.blockChainArray.size(); i++){
+            if(!chain.blockChainArray.get(i).getPreviousHash().equals(chain.blockChainArray.get(i - 1).calculateHash())){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forget the cached chain, the next sync transfers it completely.
+     */
+    public void clear(){
+        chain.blockChainArray.clear();
+        chain.chainHash = null;
+        digests.clear();
+    }
+}
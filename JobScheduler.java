@@ -0,0 +1,319 @@
+/**
+ *  Author: Xiaoyu Zhu
+ *  Andrew id: xzhu4
+ *  The project is a scheduler for BlockChain operations, with a lane for reads and a lane for mining and repair.
+ *  The mining lane runs at most one job per chain at a time, so its threads are shared fairly by all chains.
+ */
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class JobScheduler {
+    public static final int PRIORITY_READ = 0; // view, verify or corrupt the chain
+    public static final int PRIORITY_REPAIR = 1; // repair the chain
+    public static final int PRIORITY_MINE = 2; // add a new block
+    private static final String[] LANE_NAMES = {"read", "repair", "mine"};
+
+    private final ThreadPoolExecutor readExecutor; // runs reads, so they never wait behind mining
+    private final ThreadPoolExecutor heavyExecutor; // runs repairs before mining
+    private final Map<String, PriorityQueue<Job>> waitingByChain = new HashMap<>(); // chains with a running heavy job -> their next jobs
+    private int waitingCount = 0; // jobs in waitingByChain
+    private final int capacity; // requests which may wait in each lane, so a mining backlog cannot turn reads away
+    private final int clientCapacity; // requests one client may have waiting in each lane
+    private final Map<String, int[]> queuedByClient = new HashMap<>(); // client id -> its waiting requests per lane
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>(); // job id -> job
+    private final AtomicLong sequence = new AtomicLong(); // job ids, also keeps FIFO order within a priority
+    private final LongAdder[] waitNanos = {new LongAdder(), new LongAdder(), new LongAdder()}; // queue wait per priority
+    private final LongAdder[] startedCount = {new LongAdder(), new LongAdder(), new LongAdder()}; // started requests per priority
+    private final LongAdder rejected = new LongAdder(); // requests turned away because a lane or the client's share was full
+
+    //constructor
+    JobScheduler(int readThreads, int heavyThreads, int capacity, int clientCapacity){
+        readExecutor = new ThreadPoolExecutor(readThreads, readThreads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>());
+        heavyExecutor = new ThreadPoolExecutor(heavyThreads, heavyThreads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>());
+        this.capacity = capacity;
+        this.clientCapacity = clientCapacity;
+    }
+
+    /**
+     * Queue a job.
+     * @param owner the connection which submitted the job
+     * @param userID the client which may poll the job
+     * @param chainId the chain the job works on
+     * @param priority one of the PRIORITY constants
+     * @param work the operation, returning the response text
+     * @return the job id, or null if the lane or the client's share of it is full
+     */
+    public String submit(Object owner, String userID, String chainId, int priority, Callable<String> work){
+        Job job = new Job(sequence.incrementAndGet(), owner, userID, chainId, priority, work);
+        jobs.put(job.id, job);
+        if(!enqueue(job)){
+            jobs.remove(job.id);
+            return null;
+        }
+        return job.id;
+    }
+
+    /**
+     * Queue a request and wait for it.
+     * @param userID the client which sent the request
+     * @param chainId the chain the request works on
+     * @param priority one of the PRIORITY constants
+     * @param work the operation, returning the response text
+     * @return the response text, or null if the lane or the client's share of it is full
+     */
+    public String run(String userID, String chainId, int priority, Callable<String> work) throws InterruptedException {
+        Job job = new Job(sequence.incrementAndGet(), null, userID, chainId, priority, work);
+        if(!enqueue(job)){
+            return null;
+        }
+        try{
+            return job.get();
+        } catch (ExecutionException e) {
+            return "Request failed: " + e.getCause();
+        } catch (InterruptedException e) {
+            cancel(job);
+            throw e;
+        }
+    }
+
+    /**
+     *
+     * @return the queue length, the average queue wait per lane and the rejected requests
+     */
+    public String queueStatus(){
+        String res;
+        synchronized (waitingByChain) {
+            res = "Queued requests: " + queued(PRIORITY_READ) + " reads and " + queued(PRIORITY_MINE)
+                    + " mining or repair jobs, each lane holds " + capacity + ", " + clientCapacity + " per client\n";
+        }
+        for(int i = 0; i < LANE_NAMES.length; i++){
+            long count = startedCount[i].sum();
+            res += "Average queue wait (" + LANE_NAMES[i] + "): " + (count == 0 ? 0 : waitNanos[i].sum() / count / 1000000)
+                    + " millionseconds over " + count + " requests\n";
+        }
+        res += "Rejected requests: " + rejected.sum() + "\n";
+        return res;
+    }
+
+    /**
+     * Hand a job to its lane unless the lane or the client's share of it is full.
+     * A mining or repair job waits behind the running job of its chain, it would only block on the chain's lock.
+     * @param job
+     * @return false if the job was rejected
+     */
+    private boolean enqueue(Job job){
+        synchronized (waitingByChain) {
+            int[] clientQueued = queuedByClient.computeIfAbsent(job.userID, id -> new int[2]);
+            if(queued(job.priority) >= capacity || clientQueued[laneOf(job.priority)] >= clientCapacity){
+                rejected.increment();
+                return false;
+            }
+            clientQueued[laneOf(job.priority)]++;
+            job.queued = true;
+            if(job.priority == PRIORITY_READ){
+                readExecutor.execute(job);
+                return true;
+            }
+            PriorityQueue<Job> waiting = waitingByChain.get(job.chainId);
+            if(waiting == null){
+                waitingByChain.put(job.chainId, new PriorityQueue<>());
+                heavyExecutor.execute(job);
+            } else {
+                waiting.add(job);
+                waitingCount++;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A mining or repair job finished, start the next job of its chain.
+     * The next job is ordered as if it was submitted now, behind the jobs other chains queued meanwhile,
+     * so a chain with a long backlog takes turns with the others instead of running its backlog first.
+     * @param job
+     */
+    private void finished(Job job){
+        synchronized (waitingByChain) {
+            Job next = waitingByChain.get(job.chainId).poll();
+            if(next == null){
+                waitingByChain.remove(job.chainId);
+            } else {
+                waitingCount--;
+                next.seq = sequence.incrementAndGet();
+                heavyExecutor.execute(next);
+            }
+        }
+    }
+
+    /**
+     * A job left the queues, it started or was cancelled. Free its slot in the client's share.
+     * @param job
+     */
+    private void dequeued(Job job){
+        synchronized (waitingByChain) {
+            if(!job.queued){
+                return;
+            }
+            job.queued = false;
+            int[] clientQueued = queuedByClient.get(job.userID);
+            clientQueued[laneOf(job.priority)]--;
+            if(clientQueued[0] == 0 && clientQueued[1] == 0){
+                queuedByClient.remove(job.userID);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param priority
+     * @return 0 for the read lane, 1 for the mining and repair lane
+     */
+    private static int laneOf(int priority){
+        return priority == PRIORITY_READ ? 0 : 1;
+    }
+
+    /**
+     *
+     * @param priority
+     * @return the number of jobs in the lane of priority which have not started
+     */
+    private int queued(int priority){
+        if(priority == PRIORITY_READ){
+            return readExecutor.getQueue().size();
+        }
+        return heavyExecutor.getQueue().size() + waitingCount;
+    }
+
+    /**
+     * Wait up to timeoutMillis for a job and describe its state.
+     * @param jobId
+     * @param userID
+     * @param timeoutMillis
+     * @return the state and, once finished, the result of the job
+     */
+    public String status(String jobId, String userID, long timeoutMillis){
+        Job job = jobs.get(jobId);
+        if(job == null || !job.userID.equals(userID)){
+            return "Job " + jobId + " is unknown";
+        }
+        try{
+            String res = job.get(Math.max(0, timeoutMillis), TimeUnit.MILLISECONDS);
+            jobs.remove(jobId);
+            return "Job " + jobId + " is done\n" + res;
+        } catch (TimeoutException e) {
+            return "Job " + jobId + " is " + (job.started ? "running" : "queued");
+        } catch (CancellationException e) {
+            jobs.remove(jobId);
+            return "Job " + jobId + " was cancelled";
+        } catch (ExecutionException e) {
+            jobs.remove(jobId);
+            return "Job " + jobId + " failed: " + e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Job " + jobId + " is " + (job.started ? "running" : "queued");
+        }
+    }
+
+    /**
+     * Cancel and forget all jobs of a connection, e.g. after its client disconnected.
+     * Running jobs are interrupted. Queued jobs are taken out of the queues, so they free their slots at once.
+     * @param owner
+     */
+    public void cancelJobsOf(Object owner){
+        Iterator<Job> it = jobs.values().iterator();
+        while(it.hasNext()){
+            Job job = it.next();
+            if(job.owner == owner){
+                cancel(job);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Cancel a job. A job which has not started is removed from its queue.
+     * If it was the dispatched job of its chain, the next job of the chain is dispatched in its place.
+     * @param job
+     */
+    private void cancel(Job job){
+        synchronized (waitingByChain) {
+            job.cancel(true);
+            if(job.started){
+                return;
+            }
+            if(job.priority == PRIORITY_READ){
+                readExecutor.remove(job);
+            } else if(heavyExecutor.remove(job)){
+                finished(job);
+            } else {
+                PriorityQueue<Job> waiting = waitingByChain.get(job.chainId);
+                if(waiting != null && waiting.remove(job)){
+                    waitingCount--;
+                }
+            }
+            dequeued(job);
+        }
+    }
+
+    /**
+     * A queued operation ordered by priority, then by submission.
+     */
+    private class Job extends FutureTask<String> implements Comparable<Job> {
+        private long seq; // submission order, renewed when the job leaves the waiting queue of its chain
+        private final String id;
+        private final Object owner;
+        private final String userID;
+        private final String chainId;
+        private final int priority;
+        private final long queuedAt = System.nanoTime();
+        private volatile boolean started = false;
+        private boolean queued = false; // holds a slot of its client's share, guarded by waitingByChain
+
+        Job(long seq, Object owner, String userID, String chainId, int priority, Callable<String> work){
+            super(work);
+            this.seq = seq;
+            this.id = String.valueOf(seq);
+            this.owner = owner;
+            this.userID = userID;
+            this.chainId = chainId;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run(){
+            started = true;
+            dequeued(this);
+            startedCount[priority].increment();
+            waitNanos[priority].add(System.nanoTime() - queuedAt);
+            try{
+                super.run();
+            } finally {
+                if(priority != PRIORITY_READ){
+                    finished(this);
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(Job other){
+            if(priority != other.priority){
+                return Integer.compare(priority, other.priority);
+            }
+            return Long.compare(seq, other.seq);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ *  Author: Xiaoyu Zhu
+ *  Andrew id: xzhu4
+ *  The project records the stages of a BlockChain request as Java Flight Recorder events.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import java.util.concurrent.Callable;
+
+@Name("blockchain.RequestStage")
+@Label("Request Stage")
+@Category("BlockChain")
+@Description("One stage of a client request, e.g. deserialization, signature check or proof of work")
+public class RequestStageEvent extends Event {
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>(); // the request the thread works on
+
+    @Label("Trace ID")
+    @Description("Set by the client, the same on the client and the server")
+    String traceId;
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Option")
+    int option;
+
+    @Label("Client ID")
+    String clientId;
+
+    @Label("Chain ID")
+    String chainId;
+
+    @Label("Chain Size")
+    int chainSize;
+
+    @Label("Difficulty")
+    int difficulty;
+
+    @Label("Nonces Tried")
+    long nonceCount;
+
+    @Label("Bytes")
+    long bytes;
+
+    /**
+     * Start timing a stage. When recording is off, this and finish() do almost nothing.
+     * @param stage
+     * @return the started event
+     */
+    public static RequestStageEvent start(String stage){
+        RequestStageEvent event = new RequestStageEvent();
+        event.stage = stage;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Stop timing and record the stage, with the request the current thread works on.
+     * @param chainSize
+     * @param difficulty
+     * @param nonceCount
+     * @param bytes
+     */
+    public void finish(int chainSize, int difficulty, long nonceCount, long bytes){
+        end();
+        if(shouldCommit()){
+            Trace trace = CURRENT.get();
+            if(trace != null){
+                traceId = trace.traceId;
+                option = trace.option;
+                clientId = trace.clientId;
+                chainId = trace.chainId;
+            }
+            this.chainSize = chainSize;
+            this.difficulty = difficulty;
+            this.nonceCount = nonceCount;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+
+    /**
+     * Set the request the current thread works on.
+     * @param trace the request, or null when the thread is done with it
+     */
+    public static void setTrace(Trace trace){
+        if(trace == null){
+            CURRENT.remove();
+        } else {
+            CURRENT.set(trace);
+        }
+    }
+
+    /**
+     * Wrap work which runs on another thread, so its events carry the request.
+     * @param trace
+     * @param work
+     * @return the wrapped work
+     */
+    public static <T> Callable<T> traced(Trace trace, Callable<T> work){
+        return () -> {
+            setTrace(trace);
+            try{
+                return work.call();
+            } finally {
+                setTrace(null);
+            }
+        };
+    }
+
+    /**
+     * The request a stage belongs to.
+     */
+    public static class Trace {
+        final String traceId;
+        final int option;
+        final String clientId;
+        final String chainId;
+
+        Trace(String traceId, int option, String clientId, String chainId){
+            this.traceId = traceId;
+            this.option = option;
+            this.clientId = clientId;
+            this.chainId = chainId;
+        }
+    }
+}
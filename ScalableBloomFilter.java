@@ -0,0 +1,118 @@
+/**
+ *  Author: Xiaoyu Zhu
+ *  Andrew id: xzhu4
+ *  The project is a scalable Bloom filter over transaction digests of the BlockChain.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ScalableBloomFilter {
+    public static final double TIGHTENING_RATIO = 0.85; // each stage gets this times the false positive rate of the one before
+    private final double falsePositiveRate; // bound for all stages together
+    private final List<Stage> stages = new ArrayList<>(); // a new, twice as large stage is added when the last one is full
+    private long count = 0; // digests added
+
+    //constructor
+    ScalableBloomFilter(long initialCapacity, double falsePositiveRate){
+        this.falsePositiveRate = falsePositiveRate;
+        stages.add(new Stage(initialCapacity, stageRate(0)));
+    }
+
+    /**
+     * The rates of the stages form a geometric series which adds up to falsePositiveRate.
+     * A ratio close to 1 keeps later stages from needing many more probes and bits per digest.
+     * @param stage
+     * @return the false positive rate of a stage
+     */
+    private double stageRate(int stage){
+        return falsePositiveRate * (1 - TIGHTENING_RATIO) * Math.pow(TIGHTENING_RATIO, stage);
+    }
+
+    /**
+     * Add a digest.
+     * @param h1 one 64 bit part of the digest
+     * @param h2 another 64 bit part of the digest
+     */
+    public void add(long h1, long h2){
+        Stage last = stages.get(stages.size() - 1);
+        if(last.count >= last.capacity){
+            last = new Stage(last.capacity * 2, stageRate(stages.size()));
+            stages.add(last);
+        }
+        last.add(h1, h2);
+        count++;
+    }
+
+    /**
+     * Test a digest. Added digests are always found, others are found with
+     * the false positive rate given to the constructor at most.
+     * @param h1
+     * @param h2
+     * @return false if the digest was certainly never added
+     */
+    public boolean mightContain(long h1, long h2){
+        for(Stage stage : stages){
+            if(stage.mightContain(h1, h2)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *
+     * @return the number of digests added
+     */
+    public long size(){
+        return count;
+    }
+
+    /**
+     *
+     * @return the memory of the bit arrays in bytes
+     */
+    public long memoryBytes(){
+        long bytes = 0;
+        for(Stage stage : stages){
+            bytes += stage.bits.length * 8L;
+        }
+        return bytes;
+    }
+
+    /**
+     * A plain Bloom filter sized for its capacity and false positive rate.
+     */
+    private static class Stage {
+        private final long capacity;
+        private final int hashes; // number of bits set per digest
+        private final long[] bits;
+        private final long bitCount;
+        private long count = 0;
+
+        Stage(long capacity, double falsePositiveRate){
+            this.capacity = capacity;
+            this.hashes = (int) Math.ceil(Math.log(1 / falsePositiveRate) / Math.log(2));
+            this.bitCount = Math.max(64, (long) Math.ceil(capacity * hashes / Math.log(2)));
+            this.bits = new long[(int) ((bitCount + 63) / 64)];
+        }
+
+        void add(long h1, long h2){
+            for(int i = 0; i < hashes; i++){
+                long bit = Math.floorMod(h1 + i * h2, bitCount); // double hashing
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+            count++;
+        }
+
+        boolean mightContain(long h1, long h2){
+            for(int i = 0; i < hashes; i++){
+                long bit = Math.floorMod(h1 + i * h2, bitCount);
+                if((bits[(int) (bit >>> 6)] & (1L << bit)) == 0){
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ *  Author: Xiaoyu Zhu
+ *  Andrew id: xzhu4
+ *  The project indexes the transactions of the BlockChain to reject duplicates before mining them.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TransactionIndex {
+    public static final int BLOOM_INITIAL_CAPACITY = 1 << 16; // digests in the first Bloom filter stage
+    public static final double BLOOM_FALSE_POSITIVE_RATE = 0.002; // of all Bloom filter stages together
+    private static final int EMPTY = -1; // slot never used
+    private static final int REMOVED = -2; // slot of a removed entry, lookups continue past it
+
+    private ScalableBloomFilter bloom = new ScalableBloomFilter(BLOOM_INITIAL_CAPACITY, BLOOM_FALSE_POSITIVE_RATE);
+    private long staleBloomEntries = 0; // removed digests which are still set in the Bloom filter
+    private long[] keys = new long[1024]; // open addressing table: 64 bit digest of a transaction
+    private int[] blocks = newSlots(1024); // and the position of a block holding it
+    private int size = 0; // entries in the table
+    private int used = 0; // entries and removed slots
+    private long lookups = 0; // transactions checked
+    private long bloomPassed = 0; // checks the Bloom filter could not reject
+    private long falsePositives = 0; // of those, transactions the index did not hold
+
+    /**
+     * Index the transaction of a block.
+     * @param transaction
+     * @param blockIndex
+     */
+    public synchronized void add(String transaction, int blockIndex){
+        long key = digest(transaction);
+        bloom.add(key, secondHash(key));
+        if(used + 1 > keys.length * 3 / 4){
+            resize(size + 1 > keys.length / 2 ? keys.length * 2 : keys.length);
+        }
+        int slot = slotOf(key);
+        while(blocks[slot] >= 0){
+            slot = (slot + 1) & (keys.length - 1);
+        }
+        if(blocks[slot] == EMPTY){
+            used++;
+        }
+        keys[slot] = key;
+        blocks[slot] = blockIndex;
+        size++;
+    }
+
+    /**
+     * Forget the transaction of a block, e.g. before its data is changed.
+     * @param transaction
+     * @param blockIndex
+     */
+    public synchronized void remove(String transaction, int blockIndex){
+        long key = digest(transaction);
+        for(int slot = slotOf(key); blocks[slot] != EMPTY; slot = (slot + 1) & (keys.length - 1)){
+            if(blocks[slot] == blockIndex && keys[slot] == key){
+                blocks[slot] = REMOVED;
+                size--;
+                // a Bloom filter cannot remove, rebuild it once too many of its entries are stale
+                if(++staleBloomEntries > bloom.size() / 4){
+                    rebuildBloom();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Find the blocks which may hold a transaction. Most new transactions are rejected by the Bloom filter
+     * without touching the table. The caller compares the data of the returned blocks.
+     * @param transaction
+     * @return positions of blocks whose transaction has the same 64 bit digest
+     */
+    public synchronized List<Integer> candidates(String transaction){
+        List<Integer> found = new ArrayList<>();
+        long key = digest(transaction);
+        lookups++;
+        if(!bloom.mightContain(key, secondHash(key))){
+            return found;
+        }
+        bloomPassed++;
+        for(int slot = slotOf(key); blocks[slot] != EMPTY; slot = (slot + 1) & (keys.length - 1)){
+            if(blocks[slot] >= 0 && keys[slot] == key){
+                found.add(blocks[slot]);
+            }
+        }
+        if(found.isEmpty()){
+            falsePositives++;
+        }
+        return found;
+    }
+
+    /**
+     *
+     * @return the number of indexed transactions, the memory used and the observed false positive rate
+     */
+    public synchronized String status(){
+        long rejected = lookups - bloomPassed;
+        return "Indexed transactions: " + size + ", Bloom filter " + bloom.memoryBytes() + " bytes, index "
+                + (keys.length * 12L) + " bytes, false positives " + falsePositives + " of "
+                + (rejected + falsePositives) + " new transactions";
+    }
+
+    /**
+     * 64 bits of the SHA-256 of a transaction.
+     * @param transaction
+     * @return the digest
+     */
+    public static long digest(String transaction){
+        try{
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(transaction.getBytes(StandardCharsets.UTF_8));
+            long key = 0;
+            for(int i = 0; i < 8; i++){
+                key = (key << 8) | (hash[i] & 0xFF);
+            }
+            return key;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every Java platform has SHA-256
+        }
+    }
+
+    /**
+     * The second hash for double hashing in the Bloom filter, derived from the digest
+     * so the filter can be rebuilt from the table.
+     * @param key
+     * @return an odd 64 bit value
+     */
+    private static long secondHash(long key){
+        return Long.rotateLeft(key * 0x9E3779B97F4A7C15L, 31) | 1;
+    }
+
+    /**
+     *
+     * @param key
+     * @return the first slot to probe for a key
+     */
+    private int slotOf(long key){
+        return (int) (key ^ (key >>> 32)) & (keys.length - 1);
+    }
+
+    /**
+     * Copy the entries into a new table, dropping the removed slots.
+     * @param capacity a power of two
+     */
+    private void resize(int capacity){
+        long[] oldKeys = keys;
+        int[] oldBlocks = blocks;
+        keys = new long[capacity];
+        blocks = newSlots(capacity);
+        used = size;
+        for(int i = 0; i < oldKeys.length; i++){
+            if(oldBlocks[i] >= 0){
+                int slot = slotOf(oldKeys[i]);
+                while(blocks[slot] != EMPTY){
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                keys[slot] = oldKeys[i];
+                blocks[slot] = oldBlocks[i];
+            }
+        }
+    }
+
+    /**
+     * Build the Bloom filter again from the digests in the table, the first stage holds all of them.
+     */
+    private void rebuildBloom(){
+        bloom = new ScalableBloomFilter(Math.max(BLOOM_INITIAL_CAPACITY, size), BLOOM_FALSE_POSITIVE_RATE);
+        for(int i = 0; i < keys.length; i++){
+            if(blocks[i] >= 0){
+                bloom.add(keys[i], secondHash(keys[i]));
+            }
+        }
+        staleBloomEntries = 0;
+    }
+
+    /**
+     *
+     * @param capacity
+     * @return a slot array with every slot empty
+     */
+    private static int[] newSlots(int capacity){
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        return slots;
+    }
+}
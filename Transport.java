@@ -0,0 +1,100 @@
+/**
+ *  Author: Xiaoyu Zhu
+ *  Andrew id: xzhu4
+ *  The project opens the connections of the BlockChain over TCP or Unix domain sockets.
+ */
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+public class Transport {
+    public static final String DEFAULT_ADDRESS = "localhost:7777"; // where the server listened before it was configurable
+
+    /**
+     * Parse an address: "unix:/path/to/socket", "host:port" or just "port".
+     * @param address
+     * @return the socket address
+     */
+    public static SocketAddress parseAddress(String address){
+        if(address.startsWith("unix:")){
+            return UnixDomainSocketAddress.of(address.substring("unix:".length()));
+        }
+        int colon = address.lastIndexOf(':');
+        if(colon < 0){
+            return new InetSocketAddress(Integer.parseInt(address)); // every local interface
+        }
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * Listen on an address. A socket file left over from an earlier server is replaced.
+     * @param address
+     * @return the listening channel, in blocking mode
+     */
+    public static ServerSocketChannel listen(SocketAddress address) throws IOException {
+        ServerSocketChannel channel;
+        if(address instanceof UnixDomainSocketAddress){
+            removeStaleSocket(((UnixDomainSocketAddress) address).getPath());
+            channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            channel = ServerSocketChannel.open();
+        }
+        channel.bind(address);
+        return channel;
+    }
+
+    /**
+     * Delete a socket file which no server listens on any more.
+     * Anything else at the path, a regular file, a directory or the socket of a running server, is left alone.
+     * @param path
+     * @throws IOException if the path is in use, then binding would fail as well
+     */
+    private static void removeStaleSocket(Path path) throws IOException {
+        if(!Files.exists(path, LinkOption.NOFOLLOW_LINKS)){
+            return;
+        }
+        if(!Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()){
+            throw new IOException(path + " exists and is not a socket");
+        }
+        try{
+            SocketChannel.open(UnixDomainSocketAddress.of(path)).close();
+        } catch (ConnectException e) {
+            Files.delete(path); // nobody accepts connections, the server which created it is gone
+            return;
+        }
+        throw new IOException("A server is already listening on " + path);
+    }
+
+    /**
+     * Connect to a server.
+     * @param address
+     * @return the connected channel, in blocking mode
+     */
+    public static SocketChannel connect(SocketAddress address) throws IOException {
+        return configure(SocketChannel.open(address));
+    }
+
+    /**
+     * Turn off Nagle's algorithm on a TCP connection. A request is written in several small pieces,
+     * with Nagle's algorithm each round trip waits for the delayed ACK of the peer.
+     * @param channel a connected channel
+     * @return the channel
+     */
+    public static SocketChannel configure(SocketChannel channel) throws IOException {
+        if(!(channel.getLocalAddress() instanceof UnixDomainSocketAddress)){
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        return channel;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ *  Author: Xiaoyu Zhu
+ *  Andrew id: xzhu4
+ *  The project compares the round-trip latency and throughput of the BlockChain server over different transports.
+ */
+
+import org.json.simple.JSONObject;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+public class TransportBenchmark {
+    static final int REQUESTS_PER_CLIENT = 200; // stays within the token bucket of one client id
+
+    /**
+     * Run the benchmark against one or more addresses of a running server, e.g.
+     * "java TransportBenchmark localhost:7777 unix:/tmp/blockchain.sock 2000"
+     * Each request is an up-to-date sync (option 10), so the server does almost no work.
+     */
+    public static void main(String args[]) throws Exception {
+        int requests = Integer.parseInt(args[args.length - 1]);
+        for(int i = 0; i < args.length - 1; i++){
+            run(args[i], requests / 10); // warm up
+            long[] latencies = run(args[i], requests);
+            long total = 0;
+            for(long latency : latencies){
+                total += latency;
+            }
+            Arrays.sort(latencies);
+            System.out.println(args[i] + ": " + requests + " requests, "
+                    + "mean " + total / latencies.length / 1000 + " us, "
+                    + "p50 " + latencies[latencies.length / 2] / 1000 + " us, "
+                    + "p99 " + latencies[latencies.length * 99 / 100] / 1000 + " us, "
+                    + (long) (requests / (total / 1e9)) + " requests/s");
+        }
+    }
+
+    /**
+     * Send requests one after another, with a new client id every REQUESTS_PER_CLIENT requests.
+     * @param address
+     * @param requests
+     * @return the round-trip time of each request in nanoseconds
+     */
+    static long[] run(String address, int requests) throws Exception {
+        long[] latencies = new long[requests];
+        int done = 0;
+        while(done < requests){
+            BigInteger[] keys = BlockChainClientTCP.getKeys();
+            String publicKey = keys[0].toString() + keys[1].toString();
+            String id = BlockChainClientTCP.getId(publicKey);
+            try (SocketChannel channel = Transport.connect(Transport.parseAddress(address))) {
+                ObjectOutputStream out = new ObjectOutputStream(Channels.newOutputStream(channel));
+                out.flush();
+                ObjectInputStream in = new ObjectInputStream(Channels.newInputStream(channel));
+                byte[] sessionKey = BlockChainClientTCP.startSession(out, in, id, publicKey, keys);
+                ChainCache cache = new ChainCache();
+                for(long sequence = 0; sequence < REQUESTS_PER_CLIENT && done < requests; sequence++){
+                    String locator = cache.locator();
+                    JSONObject jsonObject = new JSONObject();
+                    jsonObject.put("id", id);
+                    jsonObject.put("option", 10);
+                    jsonObject.put("locator", locator);
+                    jsonObject.put("seq", sequence);
+                    jsonObject.put("mac", BlockChainClientTCP.mac(sequence + "," + id + "," + publicKey + ",10," + BlockChainServerTCP.DEFAULT_CHAIN + "," + locator, sessionKey));
+                    long start = System.nanoTime();
+                    out.writeObject(jsonObject);
+                    out.reset();
+                    out.flush();
+                    JSONObject response = (JSONObject) in.readObject();
+                    latencies[done++] = System.nanoTime() - start;
+                    if(response.get("error") != null){
+                        throw new IOException((String) response.get("error"));
+                    }
+                    cache.apply(response);
+                }
+            }
+        }
+        return latencies;
+    }
+}